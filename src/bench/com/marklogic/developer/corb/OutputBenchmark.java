@@ -0,0 +1,88 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Writing results to a file through {@link TextOutputSink}, as Manager
+ * configures it for text output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OutputBenchmark {
+
+    private static final String URI = "/documents/2012/03/14/1.xml";
+
+    @Param({ "100", "10000" })
+    public int lineLength;
+
+    private File file;
+
+    private TextOutputSink sink;
+
+    private String line;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder(lineLength);
+        for (int i = 0; i < lineLength; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        line = sb.toString();
+
+        file = File.createTempFile("corb-bench-", ".log");
+        sink = new TextOutputSink(new FileOutputStream(file), Charset
+                .defaultCharset());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sink.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        return sink.write(URI, LocalResults.newSequence(line));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long writeContended() throws IOException {
+        return sink.write(URI, LocalResults.newSequence(line));
+    }
+
+}
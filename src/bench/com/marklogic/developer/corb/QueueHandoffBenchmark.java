@@ -0,0 +1,96 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.marklogic.developer.SimpleLogger;
+
+/**
+ * Handing trivial tasks from one producer to the worker pool, through the
+ * same executors that Manager uses, the platform pool with its
+ * ArrayBlockingQueue and CallerBlocksPolicy or the work-stealing pool, with
+ * completion reported to a CompletionTracker. With trivial tasks this
+ * measures the queueing overhead alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class QueueHandoffBenchmark {
+
+    @Param({ "4", "32" })
+    public int threads;
+
+    @Param({ TransformOptions.EXECUTOR_PLATFORM,
+            TransformOptions.EXECUTOR_WORK_STEALING })
+    public String executor;
+
+    private ExecutorService pool;
+
+    private CompletionTracker tracker = new CompletionTracker();
+
+    private Runnable task = new Runnable() {
+        public void run() {
+            tracker.started();
+            tracker.completed();
+        }
+    };
+
+    @Setup
+    public void setup() {
+        int queueSize = new TransformOptions().getQueueSize();
+        if (TransformOptions.EXECUTOR_WORK_STEALING.equals(executor)) {
+            pool = new WorkStealingExecutor(threads, queueSize,
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory);
+        } else {
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads,
+                    threads, 16, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    new Manager.CallerBlocksPolicy(SimpleLogger
+                            .getSimpleLogger()));
+            tpe.prestartAllCoreThreads();
+            pool = tpe;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public void submit() {
+        pool.execute(task);
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * The per-uri path through {@link Transform}, against a fake content source
+ * with no latency. The fake's own allocations are the same on every run, so
+ * compare gc.alloc.rate.norm before and after a change to the hot path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransformBenchmark {
+
+    private static final int MASK = 1024 - 1;
+
+    private TaskFactory factory;
+
+    private OutputSink sink;
+
+    private Transform worker;
+
+    private String[] uris;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        factory = new TaskFactory(FakeContentSource.newContentSource(new URI(
+                "fake://localhost/?size=64")), "/corb/transform.xqy");
+        factory.setCompletionTracker(new CompletionTracker());
+        // responses are encoded, then discarded
+        sink = new TextOutputSink(new OutputStream() {
+            public void write(int _b) {
+                // discard
+            }
+
+            public void write(byte[] _b, int _off, int _len) {
+                // discard
+            }
+        }, Charset.defaultCharset());
+        worker = new Transform(factory, null, sink);
+        uris = new String[MASK + 1];
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = "/documents/2012/03/14/" + i + ".xml";
+        }
+    }
+
+    /** task dispatch: a new Transform per uri */
+    @Benchmark
+    public void task() {
+        factory.newTask(uris[next++ & MASK], sink).run();
+    }
+
+    /** indexed dispatch: one Transform per worker */
+    @Benchmark
+    public String indexed() throws Exception {
+        return worker.process(uris[next++ & MASK]);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Receiving uris into the {@link UriStore}, and taking them back out for
+ * queueing, as populateQueue does. Each operation is one uri.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UriStoreBenchmark {
+
+    private static final int SIZE = 100 * 1000;
+
+    private String[] received;
+
+    @Setup
+    public void setup() {
+        // stand-ins for the strings that the xcc result sequence returns
+        received = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            received[i] = "/documents/2012/03/14/" + i + ".xml";
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public UriStore ingest() {
+        UriStore uris = new UriStore(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            uris.set(i, received[i]);
+        }
+        return uris;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void ingestAndRemove(Blackhole bh) {
+        UriStore uris = new UriStore(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            uris.set(i, received[i]);
+        }
+        for (int i = 0; i < SIZE; i++) {
+            bh.consume(uris.remove(i));
+        }
+    }
+
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Folds lines of the form key TAB value into one aggregate per key, and
+ * writes only the aggregates, sorted by key, when the run ends. For a count
+ * the value is optional, and a line without a tab counts toward its whole
+ * text. The end of each item also ends a line.
+ *
+ * The keys are spread over lock stripes, so that workers rarely wait for
+ * each other. Each stripe is an open-addressing map with primitive values:
+ * integers add up as longs, and a key switches to doubles when one of its
+ * values has a fraction or its sum would overflow. Keys are matched against
+ * the buffered characters, so a line allocates nothing unless its key is
+ * new. A result that fails part way through may leave some of its lines
+ * folded in.
+ */
+public class AggregatingOutputSink implements OutputSink {
+
+    public static final String FUNCTION_COUNT = TransformOptions.OUTPUT_AGGREGATE_COUNT;
+
+    public static final String FUNCTION_SUM = TransformOptions.OUTPUT_AGGREGATE_SUM;
+
+    public static final String FUNCTION_MIN = TransformOptions.OUTPUT_AGGREGATE_MIN;
+
+    public static final String FUNCTION_MAX = TransformOptions.OUTPUT_AGGREGATE_MAX;
+
+    private static final int COUNT = 0;
+
+    private static final int SUM = 1;
+
+    private static final int MIN = 2;
+
+    private static final int MAX = 3;
+
+    private static final char KEY_SEPARATOR = PartitionedOutputSink.KEY_SEPARATOR;
+
+    private static final char NEWLINE = '\n';
+
+    private File output;
+
+    private int function;
+
+    private Stripe[] stripes;
+
+    private volatile boolean closed = false;
+
+    private ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+
+    /**
+     * @param _output
+     * @param _function
+     *            {@link #FUNCTION_COUNT}, {@link #FUNCTION_SUM},
+     *            {@link #FUNCTION_MIN} or {@link #FUNCTION_MAX}
+     */
+    public AggregatingOutputSink(File _output, String _function) {
+        if (FUNCTION_COUNT.equals(_function)) {
+            function = COUNT;
+        } else if (FUNCTION_SUM.equals(_function)) {
+            function = SUM;
+        } else if (FUNCTION_MIN.equals(_function)) {
+            function = MIN;
+        } else if (FUNCTION_MAX.equals(_function)) {
+            function = MAX;
+        } else {
+            throw new IllegalArgumentException("unknown aggregate: "
+                    + _function);
+        }
+        output = _output;
+        // a power of two, with a few stripes per core
+        int count = 1;
+        while (count < 4 * Runtime.getRuntime().availableProcessors()
+                && count < 256) {
+            count <<= 1;
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.marklogic.developer.corb.OutputSink#write(java.lang.String,
+     * com.marklogic.developer.corb.OutputResult)
+     */
+    public long write(String _uri, OutputResult _result)
+            throws IOException {
+        if (closed) {
+            throw new IOException("output is closed");
+        }
+        Buffer b = buffers.poll();
+        if (null == b) {
+            b = new Buffer();
+        }
+        try {
+            long size = 0;
+            while (_result.hasNext()) {
+                Reader r = _result.next().asReader();
+                try {
+                    size += b.append(_uri, r);
+                } finally {
+                    r.close();
+                }
+            }
+            return size;
+        } finally {
+            b.length = 0;
+            buffers.offer(b);
+        }
+    }
+
+    /**
+     * Write the aggregates, sorted by key.
+     *
+     * @see com.marklogic.developer.corb.OutputSink#close()
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        List<String> keys = new ArrayList<String>();
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                for (String key : s.keys) {
+                    if (null != key) {
+                        keys.add(key);
+                    }
+                }
+            }
+        }
+        Collections.sort(keys);
+        Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output, false), Charset.defaultCharset()),
+                TextOutputSink.BUFFER_SIZE);
+        try {
+            for (String key : keys) {
+                Stripe s = getStripe(hash(key));
+                synchronized (s) {
+                    int slot = s.find(key);
+                    w.write(key);
+                    w.write(KEY_SEPARATOR);
+                    w.write(s.real[slot] ? Double.toString(s.doubles[slot])
+                            : Long.toString(s.longs[slot]));
+                    w.write(NEWLINE);
+                }
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * @return the number of distinct keys so far
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    private Stripe getStripe(int _hash) {
+        // the map slots use the low bits, so pick the stripe with the high
+        return stripes[(_hash >>> 24) & (stripes.length - 1)];
+    }
+
+    private static int hash(String _key) {
+        return mix(_key.hashCode());
+    }
+
+    private static int mix(int _h) {
+        // the murmur3 finalizer, so that similar keys spread out
+        _h ^= _h >>> 16;
+        _h *= 0x85ebca6b;
+        _h ^= _h >>> 13;
+        _h *= 0xc2b2ae35;
+        _h ^= _h >>> 16;
+        return _h;
+    }
+
+    /**
+     * Aggregates for one stripe of the keys, in an open-addressing table
+     * with linear probing. Call with the monitor held.
+     */
+    private class Stripe {
+
+        String[] keys = new String[64];
+
+        int[] hashes = new int[64];
+
+        long[] longs = new long[64];
+
+        double[] doubles = new double[64];
+
+        /** true once a key has switched to doubles */
+        boolean[] real = new boolean[64];
+
+        int size = 0;
+
+        int find(String _key) {
+            int mask = keys.length - 1;
+            int h = hash(_key);
+            int slot = h & mask;
+            while (null != keys[slot]) {
+                if (h == hashes[slot] && _key.equals(keys[slot])) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * @return the slot for the key, which is added if it is new
+         */
+        int slot(char[] _chars, int _start, int _length, int _hash) {
+            int mask = keys.length - 1;
+            int slot = _hash & mask;
+            String key;
+            while (null != (key = keys[slot])) {
+                if (_hash == hashes[slot] && key.length() == _length
+                        && sameKey(key, _chars, _start)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                return slot(_chars, _start, _length, _hash);
+            }
+            keys[slot] = new String(_chars, _start, _length);
+            hashes[slot] = _hash;
+            size++;
+            return -1 - slot;
+        }
+
+        void add(int _slot, boolean _new, long _value) {
+            if (_new) {
+                longs[_slot] = _value;
+                return;
+            }
+            if (real[_slot]) {
+                add(_slot, false, (double) _value);
+                return;
+            }
+            long v = longs[_slot];
+            switch (function) {
+            case COUNT:
+            case SUM:
+                long sum = v + _value;
+                if (((v ^ sum) & (_value ^ sum)) < 0) {
+                    // overflow
+                    toReal(_slot);
+                    doubles[_slot] += _value;
+                } else {
+                    longs[_slot] = sum;
+                }
+                break;
+            case MIN:
+                longs[_slot] = Math.min(v, _value);
+                break;
+            default:
+                longs[_slot] = Math.max(v, _value);
+            }
+        }
+
+        void add(int _slot, boolean _new, double _value) {
+            if (_new) {
+                real[_slot] = true;
+                doubles[_slot] = _value;
+                return;
+            }
+            toReal(_slot);
+            double v = doubles[_slot];
+            switch (function) {
+            case SUM:
+                doubles[_slot] = v + _value;
+                break;
+            case MIN:
+                doubles[_slot] = Math.min(v, _value);
+                break;
+            default:
+                doubles[_slot] = Math.max(v, _value);
+            }
+        }
+
+        private void toReal(int _slot) {
+            if (!real[_slot]) {
+                real[_slot] = true;
+                doubles[_slot] = longs[_slot];
+            }
+        }
+
+        private void grow() {
+            String[] oldKeys = keys;
+            int[] oldHashes = hashes;
+            long[] oldLongs = longs;
+            double[] oldDoubles = doubles;
+            boolean[] oldReal = real;
+            int capacity = 2 * oldKeys.length;
+            keys = new String[capacity];
+            hashes = new int[capacity];
+            longs = new long[capacity];
+            doubles = new double[capacity];
+            real = new boolean[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (null == oldKeys[i]) {
+                    continue;
+                }
+                int slot = oldHashes[i] & mask;
+                while (null != keys[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                hashes[slot] = oldHashes[i];
+                longs[slot] = oldLongs[i];
+                doubles[slot] = oldDoubles[i];
+                real[slot] = oldReal[i];
+            }
+        }
+    }
+
+    private static boolean sameKey(String _key, char[] _chars, int _start) {
+        for (int i = 0; i < _key.length(); i++) {
+            if (_key.charAt(i) != _chars[_start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lines from one result, waiting to be folded in.
+     */
+    private class Buffer {
+
+        private char[] chars = new char[PartitionedOutputSink.BUFFER_SIZE];
+
+        private int length = 0;
+
+        private long parsed;
+
+        long append(String _uri, Reader _reader) throws IOException {
+            long size = 0;
+            int n;
+            while (true) {
+                if (length == chars.length) {
+                    int end = lastLineEnd();
+                    if (end < 0) {
+                        // one very long line
+                        char[] bigger = new char[2 * chars.length];
+                        System.arraycopy(chars, 0, bigger, 0, length);
+                        chars = bigger;
+                    } else {
+                        fold(_uri, end);
+                    }
+                }
+                n = _reader.read(chars, length, chars.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+                size += n;
+            }
+            // the end of an item ends a line
+            fold(_uri, length);
+            return size;
+        }
+
+        private int lastLineEnd() {
+            for (int i = length - 1; i >= 0; i--) {
+                if (NEWLINE == chars[i]) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Fold in the lines before _end, and keep the rest. The last line
+         * need not end with a newline.
+         *
+         * @param _uri
+         * @param _end
+         * @throws IOException
+         */
+        void fold(String _uri, int _end) throws IOException {
+            int start = 0;
+            while (start < _end) {
+                int eol = start;
+                while (eol < _end && NEWLINE != chars[eol]) {
+                    eol++;
+                }
+                if (eol > start) {
+                    foldLine(_uri, start, eol);
+                }
+                start = eol + 1;
+            }
+            start = Math.min(start, _end);
+            System.arraycopy(chars, start, chars, 0, length - start);
+            length -= start;
+        }
+
+        private void foldLine(String _uri, int _start, int _end)
+                throws IOException {
+            if (_end > _start && '\r' == chars[_end - 1]) {
+                _end--;
+            }
+            int tab = _start;
+            while (tab < _end && KEY_SEPARATOR != chars[tab]) {
+                tab++;
+            }
+            if (tab == _start) {
+                throw new IOException("no aggregate key in output for "
+                        + _uri);
+            }
+            long longValue = 1;
+            double doubleValue = 0;
+            boolean isLong = true;
+            if (COUNT != function) {
+                if (tab == _end) {
+                    throw new IOException("no aggregate value in output for "
+                            + _uri);
+                }
+                int from = tab + 1;
+                int to = _end;
+                while (from < to && ' ' == chars[from]) {
+                    from++;
+                }
+                while (to > from && ' ' == chars[to - 1]) {
+                    to--;
+                }
+                if (parseLong(from, to)) {
+                    longValue = parsed;
+                } else {
+                    isLong = false;
+                    try {
+                        doubleValue = Double.parseDouble(new String(chars,
+                                from, to - from));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("not a number in output for "
+                                + _uri + ": " + new String(chars, from, to
+                                - from));
+                    }
+                }
+            }
+            int length = tab - _start;
+            int h = 0;
+            for (int i = _start; i < tab; i++) {
+                h = 31 * h + chars[i];
+            }
+            h = mix(h);
+            Stripe s = getStripe(h);
+            synchronized (s) {
+                int slot = s.slot(chars, _start, length, h);
+                boolean isNew = slot < 0;
+                if (isNew) {
+                    slot = -1 - slot;
+                }
+                if (isLong) {
+                    s.add(slot, isNew, longValue);
+                } else {
+                    s.add(slot, isNew, doubleValue);
+                }
+            }
+        }
+
+        /**
+         * Parse a decimal integer into {@link #parsed}, without allocating.
+         *
+         * @return false if the text is not a short enough integer
+         */
+        private boolean parseLong(int _from, int _to) {
+            int i = _from;
+            boolean negative = false;
+            if (i < _to && ('-' == chars[i] || '+' == chars[i])) {
+                negative = '-' == chars[i];
+                i++;
+            }
+            // 18 digits cannot overflow
+            if (i == _to || _to - i > 18) {
+                return false;
+            }
+            long value = 0;
+            for (; i < _to; i++) {
+                int digit = chars[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return false;
+                }
+                value = 10 * value + digit;
+            }
+            parsed = negative ? -value : value;
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * Processes uris a batch at a time, for workers that group the uris they
+ * take from the queue.
+ */
+public interface BatchProcessor {
+
+    /**
+     * Process a batch, reporting each uri to the completion tracker.
+     *
+     * @param _uris
+     * @param _count
+     *            how many of the uris to process
+     */
+    void process(String[] _uris, int _count);
+
+    /**
+     * Release any sessions.
+     */
+    void close();
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.logging.Level;
+
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+
+/**
+ * Runs the process module for a batch of uris in one multi-statement
+ * transaction, so that an update job pays for one commit per batch instead
+ * of one per uri. Results are cached until the commit succeeds, and only
+ * then written, so the output never shows an update that was rolled back.
+ *
+ * If any request in the batch fails, or the commit does, the transaction
+ * is rolled back and each uri is retried on its own, in its own automatic
+ * commit: a bad document fails alone, and the rest of its batch still
+ * commits.
+ */
+public class BatchTransform implements Runnable, BatchProcessor {
+
+    private TaskFactory factory;
+
+    private OutputSink sink;
+
+    private String[] uris;
+
+    private int count;
+
+    private RequestOptions options = new RequestOptions();
+
+    private Session session;
+
+    private Request request;
+
+    /** processes uris one at a time, after a batch fails */
+    private Transform single;
+
+    /**
+     * @param _tf
+     * @param _uris
+     *            the batch to run as a task, or null for a worker that calls
+     *            {@link #process(String[], int)}
+     * @param _count
+     * @param _sink
+     */
+    public BatchTransform(TaskFactory _tf, String[] _uris, int _count,
+            OutputSink _sink) {
+        factory = _tf;
+        uris = _uris;
+        count = _count;
+        sink = _sink;
+        single = new Transform(_tf, null, _sink);
+        // the results wait for the commit
+        options.setCacheResult(true);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        try {
+            process(uris, count);
+        } finally {
+            close();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.BatchProcessor#process(java.lang.String[],
+     * int)
+     */
+    public void process(String[] _uris, int _count) {
+        CompletionTracker tracker = factory.getCompletionTracker();
+        for (int i = 0; i < _count; i++) {
+            tracker.started();
+        }
+        ResultSequence[] results = new ResultSequence[_count];
+        long[] nanos = new long[_count];
+        boolean committed = false;
+        try {
+            if (null == request) {
+                session = factory.newSession();
+                // one multi-statement update transaction per batch
+                session.setAutoCommit(false);
+                session.setUpdate(Session.Update.TRUE);
+                request = session.newModuleInvoke(factory.getModuleUri());
+                request.setOptions(options);
+            }
+            for (int i = 0; i < _count; i++) {
+                long start = System.nanoTime();
+                request.setNewStringVariable("URI", _uris[i]);
+                results[i] = session.submitRequest(request);
+                nanos[i] = System.nanoTime() - start;
+            }
+            session.commit();
+            committed = true;
+        } catch (Throwable t) {
+            factory.getLogger().log(Level.WARNING, "batch of " + _count
+                    + " uris from " + _uris[0] + " failed: rolling back,"
+                    + " and retrying each uri on its own", t);
+            rollback();
+        }
+        if (!committed) {
+            close(results);
+            retry(_uris, _count, tracker);
+            return;
+        }
+        TraceRecorder recorder = factory.getTraceRecorder();
+        for (int i = 0; i < _count; i++) {
+            long size = 0;
+            boolean ok = false;
+            try {
+                size = sink.write(_uris[i], new XccResult(results[i]));
+                ok = true;
+                tracker.completed();
+            } catch (Throwable t) {
+                // the update is committed, but its output is lost
+                tracker.failed(t);
+            } finally {
+                results[i].close();
+                if (null != recorder) {
+                    recorder.recordTask(_uris[i], nanos[i], size, ok);
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the sessions, if any.
+     */
+    public void close() {
+        Session s = session;
+        session = null;
+        request = null;
+        if (null != s) {
+            s.close();
+        }
+        single.close();
+    }
+
+    private void rollback() {
+        try {
+            if (null != session) {
+                session.rollback();
+            }
+        } catch (Throwable t) {
+            // the session is closed below, which also rolls back
+        }
+        // start over with a fresh session
+        close();
+    }
+
+    private void retry(String[] _uris, int _count, CompletionTracker _tracker) {
+        for (int i = 0; i < _count; i++) {
+            try {
+                single.process(_uris[i]);
+                _tracker.completed();
+            } catch (Throwable t) {
+                _tracker.failed(t);
+            }
+        }
+    }
+
+    private static void close(ResultSequence[] _results) {
+        for (ResultSequence r : _results) {
+            if (null != r) {
+                r.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * An exclusion set as a Bloom filter, for when even a hash per uri is too
+ * much memory: about 1.2 bytes per uri for a 1% false positive rate, or 1.8
+ * bytes for 0.1%. A false positive excludes a uri that is not in the list,
+ * so that uri is silently skipped: choose the rate to match what the job
+ * can tolerate.
+ */
+public class BloomExclusionSet implements ExclusionSet {
+
+    private long[] bits;
+
+    private long bitCount;
+
+    private int hashCount;
+
+    private long size = 0;
+
+    /**
+     * @param _file
+     *            uris to exclude, one per line
+     * @param _falsePositiveRate
+     *            between 0 and 1
+     */
+    public BloomExclusionSet(UriFile _file, double _falsePositiveRate) {
+        if (!(_falsePositiveRate > 0 && _falsePositiveRate < 1)) {
+            throw new IllegalArgumentException(
+                    "false positive rate must be between 0 and 1: "
+                            + _falsePositiveRate);
+        }
+        long count = Math.max(1, _file.count());
+        // the standard sizing, for the fewest bits at this rate
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-count * Math.log(_falsePositiveRate)
+                / (ln2 * ln2));
+        long words = (m + 63) >>> 6;
+        if (words > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many uris to exclude: "
+                    + count);
+        }
+        bits = new long[(int) words];
+        bitCount = words << 6;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / count
+                * ln2));
+        long position;
+        while ((position = _file.next()) > -1) {
+            add(_file.resolve(position));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.ExclusionSet#contains(java.lang.String)
+     */
+    public boolean contains(String _uri) {
+        long h = HashExclusionSet.hash(_uri);
+        long h1 = h >>> 32;
+        long h2 = (h & 0xffffffffL) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(h1 + i * h2);
+            if (0 == (bits[(int) (bit >>> 6)] & (1L << bit))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of uris added, counting duplicates
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of hash functions
+     */
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * @return the size of the filter, in bits
+     */
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    private void add(String _uri) {
+        // double hashing: k probes from the two halves of one 64-bit hash
+        long h = HashExclusionSet.hash(_uri);
+        long h1 = h >>> 32;
+        // an odd step is never zero, and since the bit count is a multiple
+        // of 64, the probes cannot all fall on one bit
+        long h2 = (h & 0xffffffffL) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(h1 + i * h2);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        size++;
+    }
+
+    private long index(long _hash) {
+        return (_hash & Long.MAX_VALUE) % bitCount;
+    }
+
+}
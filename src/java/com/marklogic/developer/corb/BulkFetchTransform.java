@@ -0,0 +1,244 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultItem;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.types.ValueType;
+
+/**
+ * Fetches a batch of documents in one request, then transforms them on the
+ * client with a {@link LocalTransform}, across the cores of a fork-join
+ * pool. The process module is not used. The fetching thread waits for its
+ * batch to be transformed and written, so memory use stays at about one
+ * batch of documents per worker thread.
+ *
+ * A uri with no document, or with no output from the transform, is
+ * completed without output.
+ */
+public class BulkFetchTransform implements Runnable, BatchProcessor {
+
+    /** returns each uri that has a document, followed by the document */
+    public static final String FETCH_QUERY = "xquery version \"1.0-ml\";\n"
+            + "declare variable $URIS as xs:string* external;\n"
+            + "for $uri in $URIS\n"
+            + "let $doc := fn:doc($uri)\n" + "where $doc\n"
+            + "return ($uri, $doc)\n";
+
+    private TaskFactory factory;
+
+    private OutputSink sink;
+
+    private LocalTransform transform;
+
+    private ForkJoinPool pool;
+
+    private String[] uris;
+
+    private int count;
+
+    private RequestOptions options = new RequestOptions();
+
+    private Session session;
+
+    private Request request;
+
+    /**
+     * @param _tf
+     * @param _uris
+     *            the batch to run as a task, or null for a worker that calls
+     *            {@link #process(String[], int)}
+     * @param _count
+     * @param _sink
+     * @param _transform
+     * @param _pool
+     */
+    public BulkFetchTransform(TaskFactory _tf, String[] _uris, int _count,
+            OutputSink _sink, LocalTransform _transform, ForkJoinPool _pool) {
+        factory = _tf;
+        uris = _uris;
+        count = _count;
+        sink = _sink;
+        transform = _transform;
+        pool = _pool;
+        // the documents are read as they arrive
+        options.setCacheResult(false);
+        options.setEffectivePointInTime(_tf.getPointInTime());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        try {
+            process(uris, count);
+        } finally {
+            close();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.BatchProcessor#process(java.lang.String[],
+     * int)
+     */
+    public void process(String[] _uris, int _count) {
+        CompletionTracker tracker = factory.getCompletionTracker();
+        for (int i = 0; i < _count; i++) {
+            tracker.started();
+        }
+        long start = System.nanoTime();
+        String[] documents;
+        try {
+            documents = fetch(_uris, _count);
+        } catch (Throwable t) {
+            // start over with a fresh session
+            close();
+            for (int i = 0; i < _count; i++) {
+                tracker.failed(t);
+            }
+            return;
+        }
+        List<Document> tasks = new ArrayList<Document>(_count);
+        for (int i = 0; i < _count; i++) {
+            tasks.add(new Document(_uris[i], documents[i], start, tracker));
+        }
+        final List<Document> batch = tasks;
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            protected void compute() {
+                ForkJoinTask.invokeAll(batch);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.BatchProcessor#close()
+     */
+    public void close() {
+        Session s = session;
+        session = null;
+        request = null;
+        if (null != s) {
+            s.close();
+        }
+    }
+
+    /**
+     * @param _uris
+     * @param _count
+     * @return the documents, in uri order, with null for a missing one
+     * @throws Exception
+     */
+    private String[] fetch(String[] _uris, int _count) throws Exception {
+        if (null == request) {
+            session = factory.newSession();
+            request = session.newAdhocQuery(FETCH_QUERY);
+            request.setOptions(options);
+        }
+        // a sequence, so that any character may appear in a uri
+        String[] batch = new String[_count];
+        System.arraycopy(_uris, 0, batch, 0, _count);
+        request.setNewVariables("URIS", ValueType.XS_STRING, batch);
+        String[] documents = new String[_count];
+        ResultSequence result = session.submitRequest(request);
+        try {
+            // the results skip missing documents, but keep uri order
+            int i = 0;
+            while (result.hasNext()) {
+                String uri = result.next().asString();
+                ResultItem document = result.next();
+                while (i < _count && !_uris[i].equals(uri)) {
+                    i++;
+                }
+                if (i == _count) {
+                    throw new IllegalStateException("unexpected uri " + uri);
+                }
+                documents[i++] = document.asString();
+            }
+        } finally {
+            result.close();
+        }
+        return documents;
+    }
+
+    /**
+     * Transforms and writes one document.
+     */
+    private class Document extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private String uri;
+
+        private String document;
+
+        private long startNanos;
+
+        private CompletionTracker tracker;
+
+        Document(String _uri, String _document, long _startNanos,
+                CompletionTracker _tracker) {
+            uri = _uri;
+            document = _document;
+            startNanos = _startNanos;
+            tracker = _tracker;
+        }
+
+        protected void compute() {
+            long size = 0;
+            boolean ok = false;
+            try {
+                String output = null == document ? null : transform
+                        .transform(uri, document);
+                if (null != output) {
+                    size = sink.write(uri, LocalResults.newSequence(output));
+                }
+                ok = true;
+                tracker.completed();
+            } catch (Throwable t) {
+                tracker.failed(t);
+            } finally {
+                // release the document before the batch ends
+                document = null;
+                TraceRecorder recorder = factory.getTraceRecorder();
+                if (null != recorder) {
+                    recorder.recordTask(uri, System.nanoTime() - startNanos,
+                            size, ok);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.IOException;
+
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.XccException;
+import com.marklogic.xcc.types.ValueType;
+
+/**
+ * Serves the results of unchanged documents from a {@link ResultCache}.
+ * For each batch, one request looks up the document timestamps. A uri whose
+ * timestamp matches its cached entry is written from the cache, without
+ * running the process module. The others run it as usual, and their results
+ * are added to the cache as they are written: each item is read as text
+ * once, and encoded for the cache as it goes to the output.
+ *
+ * Results are cached as text, so this only suits modules whose output is
+ * text, and depends on nothing but the document. If the timestamps cannot
+ * be looked up, the batch runs without the cache. The cache is fingerprinted
+ * with the process module's source, as the server has it, and the options
+ * that shape the results, so it is discarded when either changes.
+ */
+public class CachedTransform implements Runnable, BatchProcessor {
+
+    /** returns the timestamp of each uri, or -1 if it has no document */
+    public static final String TIMESTAMP_QUERY = "xquery version \"1.0-ml\";\n"
+            + "declare variable $URIS as xs:string* external;\n"
+            + "for $uri in $URIS\n"
+            + "return fn:string((xdmp:document-timestamp($uri), -1)[1])\n";
+
+    /** returns the MD5 of a module's source, from where the server reads it */
+    public static final String MODULE_QUERY = "xquery version \"1.0-ml\";\n"
+            + "declare variable $URI as xs:string external;\n"
+            + "let $db := xdmp:modules-database()\n"
+            + "let $path := fn:concat(xdmp:modules-root(),"
+            + " fn:replace($URI, \"^/\", \"\"))\n"
+            + "return xdmp:md5(\n"
+            + "  if ($db eq 0) then xdmp:filesystem-file($path)\n"
+            + "  else xdmp:eval(\"declare variable $URI as xs:string external;"
+            + " fn:string(fn:doc($URI))\",\n"
+            + "    (xs:QName(\"URI\"), $path),\n"
+            + "    <options xmlns=\"xdmp:eval\"><database>{$db}</database>"
+            + "</options>))\n";
+
+    private TaskFactory factory;
+
+    private OutputSink sink;
+
+    private ResultCache cache;
+
+    private String[] uris;
+
+    private int count;
+
+    private RequestOptions options = new RequestOptions();
+
+    private Session session;
+
+    private Request request;
+
+    /** runs the process module for a cache miss */
+    private Transform single;
+
+    /** the timestamp of the uri that {@link #single} is running */
+    private long timestamp;
+
+    /**
+     * @param _tf
+     * @param _uris
+     *            the batch to run as a task, or null for a worker that calls
+     *            {@link #process(String[], int)}
+     * @param _count
+     * @param _sink
+     * @param _cache
+     */
+    public CachedTransform(TaskFactory _tf, String[] _uris, int _count,
+            OutputSink _sink, ResultCache _cache) {
+        factory = _tf;
+        uris = _uris;
+        count = _count;
+        sink = _sink;
+        cache = _cache;
+        single = new Transform(_tf, null, new CachingSink());
+        options.setCacheResult(false);
+        options.setEffectivePointInTime(_tf.getPointInTime());
+    }
+
+    /**
+     * Describe what the results depend on, besides the document: the process
+     * module, the variables it is given, and how its items become records.
+     *
+     * @param _session
+     * @param _moduleUri
+     * @param _records
+     *            the output.records option
+     * @return
+     * @throws XccException
+     */
+    public static String fingerprint(Session _session, String _moduleUri,
+            String _records) throws XccException {
+        Request req = _session.newAdhocQuery(MODULE_QUERY);
+        req.setNewStringVariable("URI", _moduleUri);
+        ResultSequence result = _session.submitRequest(req);
+        String md5;
+        try {
+            md5 = result.next().asString();
+        } finally {
+            result.close();
+        }
+        return "module=" + _moduleUri + "\nmd5=" + md5 + "\nvariables=URI"
+                + "\nrecords=" + _records + "\n";
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        try {
+            process(uris, count);
+        } finally {
+            close();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.BatchProcessor#process(java.lang.String[],
+     * int)
+     */
+    public void process(String[] _uris, int _count) {
+        CompletionTracker tracker = factory.getCompletionTracker();
+        for (int i = 0; i < _count; i++) {
+            tracker.started();
+        }
+        long[] timestamps;
+        try {
+            timestamps = lookup(_uris, _count);
+        } catch (Throwable t) {
+            // start over with a fresh session, and do without the cache
+            closeSession();
+            timestamps = null;
+        }
+        for (int i = 0; i < _count; i++) {
+            timestamp = null == timestamps ? -1 : timestamps[i];
+            try {
+                if (timestamp < 0 || !serve(_uris[i], timestamp)) {
+                    single.process(_uris[i]);
+                }
+                tracker.completed();
+            } catch (Throwable t) {
+                tracker.failed(t);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.BatchProcessor#close()
+     */
+    public void close() {
+        closeSession();
+        single.close();
+    }
+
+    private void closeSession() {
+        Session s = session;
+        session = null;
+        request = null;
+        if (null != s) {
+            s.close();
+        }
+    }
+
+    /**
+     * @param _uri
+     * @param _timestamp
+     * @return true if the result was written from the cache
+     * @throws IOException
+     */
+    private boolean serve(String _uri, long _timestamp) throws IOException {
+        long start = System.nanoTime();
+        String[] items = cache.get(_uri, _timestamp);
+        if (null == items) {
+            return false;
+        }
+        long size = sink.write(_uri, LocalResults.newSequence(items));
+        TraceRecorder recorder = factory.getTraceRecorder();
+        if (null != recorder) {
+            recorder.recordTask(_uri, System.nanoTime() - start, size, true);
+        }
+        return true;
+    }
+
+    /**
+     * @param _uris
+     * @param _count
+     * @return the timestamps, in uri order, with -1 for a missing document
+     * @throws Exception
+     */
+    private long[] lookup(String[] _uris, int _count) throws Exception {
+        if (null == request) {
+            session = factory.newSession();
+            request = session.newAdhocQuery(TIMESTAMP_QUERY);
+            request.setOptions(options);
+        }
+        // a sequence, so that any character may appear in a uri
+        String[] batch = new String[_count];
+        System.arraycopy(_uris, 0, batch, 0, _count);
+        request.setNewVariables("URIS", ValueType.XS_STRING, batch);
+        long[] timestamps = new long[_count];
+        ResultSequence result = session.submitRequest(request);
+        try {
+            int i = 0;
+            while (result.hasNext()) {
+                if (i == _count) {
+                    throw new IllegalStateException("too many timestamps");
+                }
+                timestamps[i++] = Long.parseLong(result.next().asString());
+            }
+            if (i < _count) {
+                throw new IllegalStateException("expected " + _count
+                        + " timestamps, not " + i);
+            }
+        } finally {
+            result.close();
+        }
+        return timestamps;
+    }
+
+    /**
+     * Writes each result, and caches it under the timestamp of the uri being
+     * run.
+     */
+    private class CachingSink implements OutputSink {
+
+        public long write(String _uri, OutputResult _result)
+                throws IOException {
+            if (timestamp < 0) {
+                return sink.write(_uri, _result);
+            }
+            CapturingResult captured = new CapturingResult(_result, cache
+                    .newEntry(_uri, timestamp));
+            long size = sink.write(_uri, captured);
+            // a sink that stopped early did not see the whole result
+            if (!_result.hasNext()) {
+                cache.put(captured.entry);
+            }
+            return size;
+        }
+
+        public void close() throws IOException {
+            // the real sink is closed by the manager
+        }
+    }
+
+    /**
+     * Reads each item as text, for the output, and adds it to a cache
+     * entry on the way.
+     */
+    private static class CapturingResult implements OutputResult {
+
+        private OutputResult result;
+
+        private ResultCache.Entry entry;
+
+        CapturingResult(OutputResult _result, ResultCache.Entry _entry) {
+            result = _result;
+            entry = _entry;
+        }
+
+        public boolean hasNext() throws IOException {
+            return result.hasNext();
+        }
+
+        public OutputItem next() throws IOException {
+            String value = result.next().asString();
+            entry.add(value);
+            return LocalResults.newItem(value);
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks task completion without futures: workers bump striped counters,
+ * and the first failure goes to a one-slot error channel. Memory use is
+ * constant, no matter how far completion runs ahead of the monitor.
+ *
+ * Each thread updates the stripe chosen by its id, and the stripes are
+ * padded onto separate cache lines, so workers do not contend with each
+ * other. Reading a count sums the stripes, which is cheap enough for the
+ * monitor to do a few times a second.
+ */
+public class CompletionTracker {
+
+    /** longs per stripe: 128 bytes, so no two stripes share a cache line */
+    private static final int PAD = 16;
+
+    private static final int STARTED = 0;
+
+    private static final int COMPLETED = 1;
+
+    private static final int FAILED = 2;
+
+    private final int mask;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    private final CountDownLatch errorLatch = new CountDownLatch(1);
+
+    /**
+     *
+     */
+    public CompletionTracker() {
+        int stripes = 1;
+        while (stripes < 2 * Runtime.getRuntime().availableProcessors()) {
+            stripes <<= 1;
+        }
+        mask = stripes - 1;
+        counts = new AtomicLongArray(stripes * PAD);
+    }
+
+    private int index(int _counter) {
+        return ((int) Thread.currentThread().getId() & mask) * PAD
+                + _counter;
+    }
+
+    private long sum(int _counter) {
+        long sum = 0;
+        for (int i = _counter; i < counts.length(); i += PAD) {
+            sum += counts.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Call from the worker, as a task starts.
+     */
+    public void started() {
+        counts.incrementAndGet(index(STARTED));
+    }
+
+    /**
+     * Call from the worker, as a task completes.
+     */
+    public void completed() {
+        counts.incrementAndGet(index(COMPLETED));
+    }
+
+    /**
+     * Call from the worker, as a task fails. Only the first error is kept.
+     *
+     * @param _error
+     */
+    public void failed(Throwable _error) {
+        counts.incrementAndGet(index(FAILED));
+        if (error.compareAndSet(null, _error)) {
+            errorLatch.countDown();
+        }
+    }
+
+    /**
+     * @return the number of tasks that completed successfully
+     */
+    public long getCompletedCount() {
+        return sum(COMPLETED);
+    }
+
+    /**
+     * @return the number of tasks that failed
+     */
+    public long getFailedCount() {
+        return sum(FAILED);
+    }
+
+    /**
+     * @return the number of tasks running now: approximate, since the
+     *         stripes are read one at a time
+     */
+    public long getActiveCount() {
+        return Math.max(0, sum(STARTED) - sum(COMPLETED) - sum(FAILED));
+    }
+
+    /**
+     * Wait for the first failure.
+     *
+     * @param _timeout
+     * @param _unit
+     * @return the first error, or null if there was none before the timeout
+     * @throws InterruptedException
+     */
+    public Throwable awaitError(long _timeout, TimeUnit _unit)
+            throws InterruptedException {
+        errorLatch.await(_timeout, _unit);
+        return error.get();
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * Uris to leave out of a run. The set is checked as uris stream in, so
+ * excluded uris are never queued.
+ */
+public interface ExclusionSet {
+
+    /**
+     * @param _uri
+     * @return true if the uri is excluded
+     */
+    boolean contains(String _uri);
+
+    /**
+     * @return the number of uris in the set
+     */
+    long size();
+
+}
@@ -0,0 +1,785 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ModuleInvoke;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultItem;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import com.marklogic.xcc.types.ValueType;
+import com.marklogic.xcc.types.XSInteger;
+import com.marklogic.xcc.types.XSString;
+
+/**
+ * An in-process stand-in for an XCC content source, for load testing corb
+ * without a MarkLogic cluster. Use a connection uri like
+ *
+ * <pre>
+ * fake://localhost/?uris=1000000&amp;latency=5&amp;jitter=2&amp;errors=0.0001&amp;size=200
+ * </pre>
+ *
+ * The uris module returns a synthetic list of uris, and each process module
+ * request sleeps for the configured latency, plus or minus a uniform random
+ * jitter, then returns a response of the configured size in characters,
+ * repeated as many times as the items parameter says. With a keys
+ * parameter, each item starts with one of that many partition keys. The
+ * errors parameter is the probability that a request fails. A bulk fetch
+ * for a {@link LocalTransform} returns a document of the configured size
+ * for each uri, with the latency and error rate of a single request, and
+ * so does a timestamp lookup for the {@link ResultCache}: every document
+ * has the timestamp given by the version parameter.
+ *
+ * With a replay parameter naming a trace from {@link TraceRecorder}, the
+ * uris module returns the recorded uris in their recorded order, and each
+ * request repeats its recorded latency, response size and status. Tasks
+ * that never completed in the recorded run fall back to the other
+ * parameters.
+ *
+ * This is for load testing corb itself, not for testing modules. Ad hoc
+ * queries are recognized only when they are exactly one of corb's own
+ * queries: any other query fails, as a request error that names it. The
+ * XCC interfaces are implemented with dynamic proxies, so that only the
+ * methods corb actually calls need to be simulated: any other method throws
+ * UnsupportedOperationException, naming the interface and method.
+ */
+public class FakeContentSource {
+
+    public static final String SCHEME = "fake";
+
+    public static final String URIS = "uris";
+
+    public static final String LATENCY = "latency";
+
+    public static final String JITTER = "jitter";
+
+    public static final String ERRORS = "errors";
+
+    public static final String SIZE = "size";
+
+    public static final String ITEMS = "items";
+
+    public static final String KEYS = "keys";
+
+    public static final String SEED = "seed";
+
+    public static final String REPLAY = "replay";
+
+    public static final String VERSION = "version";
+
+    private static final String URI_PREFIX = "/fake/";
+
+    private int uriCount = 1000;
+
+    private long latencyMillis = 0;
+
+    private long jitterMillis = 0;
+
+    private double errorRate = 0;
+
+    private int responseSize = 64;
+
+    private int itemCount = 1;
+
+    private int keyCount = 0;
+
+    private long seed = System.nanoTime();
+
+    private long version = 1;
+
+    private String padding;
+
+    private TraceReplay replay;
+
+    private ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        protected Random initialValue() {
+            synchronized (FakeContentSource.this) {
+                return new Random(seed++);
+            }
+        }
+    };
+
+    /**
+     * @param _uri
+     * @return
+     */
+    public static ContentSource newContentSource(URI _uri) {
+        return new FakeContentSource(_uri).getContentSource();
+    }
+
+    /**
+     * @param _uri
+     */
+    public FakeContentSource(URI _uri) {
+        String query = _uri.getQuery();
+        if (null != query) {
+            String[] pairs = query.split("&");
+            for (int i = 0; i < pairs.length; i++) {
+                int eq = pairs[i].indexOf('=');
+                if (eq < 1) {
+                    continue;
+                }
+                setParameter(pairs[i].substring(0, eq), pairs[i]
+                        .substring(eq + 1));
+            }
+        }
+        StringBuilder sb = new StringBuilder(responseSize);
+        for (int i = 0; i < responseSize; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        padding = sb.toString();
+    }
+
+    private void setParameter(String _name, String _value) {
+        if (URIS.equals(_name)) {
+            uriCount = Integer.parseInt(_value);
+        } else if (LATENCY.equals(_name)) {
+            latencyMillis = Long.parseLong(_value);
+        } else if (JITTER.equals(_name)) {
+            jitterMillis = Long.parseLong(_value);
+        } else if (ERRORS.equals(_name)) {
+            errorRate = Double.parseDouble(_value);
+        } else if (SIZE.equals(_name)) {
+            responseSize = Integer.parseInt(_value);
+        } else if (ITEMS.equals(_name)) {
+            itemCount = Integer.parseInt(_value);
+        } else if (KEYS.equals(_name)) {
+            keyCount = Integer.parseInt(_value);
+        } else if (SEED.equals(_name)) {
+            seed = Long.parseLong(_value);
+        } else if (VERSION.equals(_name)) {
+            version = Long.parseLong(_value);
+        } else if (REPLAY.equals(_name)) {
+            try {
+                replay = new TraceReplay(new File(_value));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("cannot read trace "
+                        + _value, e);
+            }
+        } else {
+            throw new IllegalArgumentException("unknown parameter " + _name
+                    + " for " + SCHEME + " content source");
+        }
+    }
+
+    /**
+     * @return
+     */
+    public ContentSource getContentSource() {
+        return (ContentSource) newProxy(new Class<?>[] { ContentSource.class },
+                new ContentSourceHandler());
+    }
+
+    /**
+     * @return the number of uris that the uris module will return
+     */
+    protected int getUriCount() {
+        return null == replay ? uriCount : replay.getUriCount();
+    }
+
+    /**
+     * @param _index
+     * @return
+     */
+    protected String getUri(int _index) {
+        if (null != replay) {
+            try {
+                return replay.getUri(_index);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return URI_PREFIX + _index + ".xml";
+    }
+
+    /**
+     * Simulate one process module request.
+     *
+     * @param _request
+     * @param _uri
+     * @return
+     * @throws RequestException
+     */
+    protected String process(Request _request, String _uri)
+            throws RequestException {
+        TraceReplay.Task task = null;
+        if (null != replay) {
+            try {
+                task = replay.getTask(_uri);
+            } catch (IOException e) {
+                throw new SimulatedException("cannot read trace for " + _uri,
+                        _request, e);
+            }
+        }
+        if (null != task) {
+            sleep(_request, task.latencyMicros);
+            if (!task.ok) {
+                throw new SimulatedException("replayed error for " + _uri,
+                        _request, null);
+            }
+            return response(_uri, task.responseSize);
+        }
+
+        Random r = random.get();
+        long sleep = latencyMillis;
+        if (jitterMillis > 0) {
+            sleep += (long) ((r.nextDouble() * 2 - 1) * jitterMillis);
+        }
+        sleep(_request, sleep * 1000);
+        if (errorRate > 0 && r.nextDouble() < errorRate) {
+            throw new SimulatedException("simulated error for " + _uri,
+                    _request, null);
+        }
+        return response(_uri, responseSize);
+    }
+
+    private void sleep(Request _request, long _micros)
+            throws RequestException {
+        if (_micros <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(_micros / 1000, (int) (_micros % 1000) * 1000);
+        } catch (InterruptedException e) {
+            // reset interrupt status and fail the request
+            Thread.currentThread().interrupt();
+            throw new SimulatedException("interrupted", _request, e);
+        }
+    }
+
+    /**
+     * @param _uri
+     * @param _size
+     * @return a synthetic response of the given length
+     */
+    protected String response(String _uri, int _size) {
+        if (_uri.length() >= _size) {
+            return _uri.substring(0, _size);
+        }
+        if (_size > padding.length()) {
+            StringBuilder sb = new StringBuilder(_size);
+            sb.append(_uri);
+            while (sb.length() < _size) {
+                sb.append(padding, 0, Math.min(padding.length(), _size
+                        - sb.length()));
+            }
+            return sb.toString();
+        }
+        return _uri + padding.substring(_uri.length(), _size);
+    }
+
+    private ResultSequence submit(RequestHandler _handler, Request _request)
+            throws RequestException {
+        if (null != _handler.query) {
+            // only the queries corb itself sends are simulated
+            String query = _handler.query;
+            if (Manager.STATUS_QUERY.equals(query)) {
+                // modules on the filesystem, so there is nothing to install
+                return newSequence(new Object[] { "0", "/" });
+            }
+            if (Watermark.TIME_QUERY.equals(query)) {
+                return newSequence(new Object[] { now() });
+            }
+            if (Watermark.SNAPSHOT_TIME_QUERY.equals(query)) {
+                // the fake's timestamps are milliseconds
+                return newSequence(new Object[] { dateTime(Long
+                        .parseLong((String) _handler.variables
+                                .get("TIMESTAMP"))) });
+            }
+            if (CachedTransform.MODULE_QUERY.equals(query)) {
+                // there is no module source: fingerprint its uri
+                return newSequence(new Object[] { Integer
+                        .toHexString(((String) _handler.variables
+                                .get("URI")).hashCode()) });
+            }
+            Object batch = _handler.variables.get("URIS");
+            if (CachedTransform.TIMESTAMP_QUERY.equals(query)) {
+                String[] uris = toStrings(batch);
+                process(_request, uris[0]);
+                Object[] items = new Object[uris.length];
+                for (int i = 0; i < uris.length; i++) {
+                    items[i] = Long.toString(version);
+                }
+                return newSequence(items);
+            }
+            if (BulkFetchTransform.FETCH_QUERY.equals(query)) {
+                // a bulk fetch: the batch costs one request's latency
+                String[] uris = toStrings(batch);
+                Object[] items = new Object[2 * uris.length];
+                for (int i = 0; i < uris.length; i++) {
+                    items[2 * i] = uris[i];
+                    items[2 * i + 1] = 0 == i ? process(_request, uris[i])
+                            : response(uris[i], responseSize);
+                }
+                return newSequence(items);
+            }
+            throw new SimulatedException("the " + SCHEME
+                    + " content source does not simulate this query: "
+                    + query, _request, null);
+        }
+        Object uri = _handler.variables.get("URI");
+        if (null != uri) {
+            String response = process(_request, uri.toString());
+            Object[] items = new Object[itemCount];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = keyCount < 1 ? response : "key"
+                        + ((uri.hashCode() + i) & Integer.MAX_VALUE)
+                        % keyCount + PartitionedOutputSink.KEY_SEPARATOR
+                        + response;
+            }
+            return newSequence(items);
+        }
+        if (_handler.variables.containsKey("URIS")) {
+            return (ResultSequence) newProxy(
+                    new Class<?>[] { ResultSequence.class },
+                    new UrisSequenceHandler());
+        }
+        throw new SimulatedException("unexpected request for module "
+                + _handler.module, _request, null);
+    }
+
+    /**
+     * @param _value
+     *            a sequence variable, or a string of newline-separated values
+     * @return
+     */
+    private static String[] toStrings(Object _value) {
+        if (!(_value instanceof Object[])) {
+            return _value.toString().split("\n");
+        }
+        Object[] values = (Object[]) _value;
+        String[] strings = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            strings[i] = values[i].toString();
+        }
+        return strings;
+    }
+
+    /**
+     * @return the current time, as an xs:dateTime
+     */
+    private static String now() {
+        return dateTime(System.currentTimeMillis());
+    }
+
+    private static String dateTime(long _millis) {
+        GregorianCalendar calendar = new GregorianCalendar();
+        calendar.setTimeInMillis(_millis);
+        try {
+            return DatatypeFactory.newInstance().newXMLGregorianCalendar(
+                    calendar).toXMLFormat();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * RequestException.toString() expects XCC's own session implementation,
+     * so leave out the request details.
+     */
+    private static class SimulatedException extends RequestException {
+
+        private static final long serialVersionUID = 1L;
+
+        SimulatedException(String _message, Request _request,
+                Throwable _cause) {
+            super(_message, _request, _cause);
+        }
+
+        protected void appendRequestInfo(StringBuffer _sb) {
+            // nothing to add
+        }
+    }
+
+    private static Object newProxy(Class<?>[] _interfaces,
+            InvocationHandler _handler) {
+        return Proxy.newProxyInstance(FakeContentSource.class
+                .getClassLoader(), _interfaces, _handler);
+    }
+
+    private static ResultSequence newSequence(Object[] _items) {
+        return (ResultSequence) newProxy(new Class<?>[] { ResultSequence.class },
+                new SequenceHandler(_items));
+    }
+
+    private static ResultItem newItem(Object _value, int _index) {
+        Class<?> type = (_value instanceof Number) ? XSInteger.class
+                : XSString.class;
+        return (ResultItem) newProxy(new Class<?>[] { ResultItem.class, type },
+                new ItemHandler(_value, _index));
+    }
+
+    /**
+     * Common behavior for all the proxies.
+     */
+    private abstract static class Handler implements InvocationHandler {
+
+        public Object invoke(Object _proxy, Method _method, Object[] _args)
+                throws Throwable {
+            String name = _method.getName();
+            if ("hashCode".equals(name)) {
+                return Integer.valueOf(System.identityHashCode(_proxy));
+            }
+            if ("equals".equals(name)) {
+                return Boolean.valueOf(_proxy == _args[0]);
+            }
+            return handle(_proxy, name, null == _args ? new Object[0] : _args);
+        }
+
+        protected abstract Object handle(Object _proxy, String _name,
+                Object[] _args) throws Throwable;
+
+        protected Object unsupported(String _name) {
+            throw new UnsupportedOperationException("the " + SCHEME
+                    + " content source does not simulate "
+                    + getClass().getSimpleName() + "." + _name);
+        }
+    }
+
+    private class ContentSourceHandler extends Handler {
+
+        protected Object handle(Object _proxy, String _name, Object[] _args) {
+            if ("newSession".equals(_name)) {
+                return newProxy(new Class<?>[] { Session.class },
+                        new SessionHandler(_proxy));
+            }
+            if ("toString".equals(_name)) {
+                return SCHEME + " content source";
+            }
+            if ("isAuthenticationPreemptive".equals(_name)) {
+                return Boolean.FALSE;
+            }
+            if (_name.startsWith("set")) {
+                return null;
+            }
+            return unsupported(_name);
+        }
+    }
+
+    private class SessionHandler extends Handler {
+
+        private Object contentSource;
+
+        private boolean closed = false;
+
+        private RequestOptions defaultOptions = new RequestOptions();
+
+        SessionHandler(Object _contentSource) {
+            contentSource = _contentSource;
+        }
+
+        protected Object handle(Object _proxy, String _name, Object[] _args)
+                throws Throwable {
+            if ("newModuleInvoke".equals(_name)) {
+                RequestHandler h = new RequestHandler(_proxy);
+                h.module = (String) _args[0];
+                return newProxy(new Class<?>[] { ModuleInvoke.class }, h);
+            }
+            if ("newAdhocQuery".equals(_name)) {
+                RequestHandler h = new RequestHandler(_proxy);
+                h.query = (String) _args[0];
+                return newProxy(new Class<?>[] { AdhocQuery.class }, h);
+            }
+            if ("submitRequest".equals(_name)) {
+                Request request = (Request) _args[0];
+                return submit((RequestHandler) Proxy
+                        .getInvocationHandler(request), request);
+            }
+            if ("close".equals(_name)) {
+                closed = true;
+                return null;
+            }
+            if ("isClosed".equals(_name)) {
+                return Boolean.valueOf(closed);
+            }
+            if ("getContentSource".equals(_name)) {
+                return contentSource;
+            }
+            if ("getCurrentServerPointInTime".equals(_name)) {
+                return BigInteger.valueOf(System.currentTimeMillis());
+            }
+            if ("getDefaultRequestOptions".equals(_name)
+                    || "getEffectiveRequestOptions".equals(_name)) {
+                return defaultOptions;
+            }
+            if ("setDefaultRequestOptions".equals(_name)) {
+                defaultOptions = (RequestOptions) _args[0];
+                return null;
+            }
+            if ("insertContent".equals(_name) || "rollback".equals(_name)
+                    || "setAutoCommit".equals(_name)
+                    || "setUpdate".equals(_name)) {
+                return null;
+            }
+            if ("commit".equals(_name)) {
+                return Boolean.TRUE;
+            }
+            if ("toString".equals(_name)) {
+                return SCHEME + " session";
+            }
+            return unsupported(_name);
+        }
+    }
+
+    private static class RequestHandler extends Handler {
+
+        private Object session;
+
+        String module;
+
+        String query;
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+
+        private RequestOptions options;
+
+        RequestHandler(Object _session) {
+            session = _session;
+        }
+
+        protected Object handle(Object _proxy, String _name, Object[] _args) {
+            if ("setNewStringVariable".equals(_name)
+                    || "setNewIntegerVariable".equals(_name)) {
+                // the namespace is optional, and comes first
+                variables.put((String) _args[_args.length - 2],
+                        _args[_args.length - 1]);
+                return null;
+            }
+            if ("setNewVariables".equals(_name) && _args.length > 2) {
+                // a sequence of values
+                variables.put((String) _args[_args.length - 3],
+                        _args[_args.length - 1]);
+                return null;
+            }
+            if ("setNewVariable".equals(_name) && _args.length > 2) {
+                variables.put((String) _args[_args.length - 3],
+                        _args[_args.length - 1]);
+                return null;
+            }
+            if ("clearVariables".equals(_name)) {
+                variables.clear();
+                return null;
+            }
+            if ("setOptions".equals(_name)) {
+                options = (RequestOptions) _args[0];
+                return null;
+            }
+            if ("getOptions".equals(_name)
+                    || "getEffectiveOptions".equals(_name)) {
+                return options;
+            }
+            if ("getSession".equals(_name)) {
+                return session;
+            }
+            if ("getModuleUri".equals(_name)) {
+                return module;
+            }
+            if ("getQuery".equals(_name)) {
+                return query;
+            }
+            if ("toString".equals(_name)) {
+                return null == module ? "adhoc query" : module;
+            }
+            return unsupported(_name);
+        }
+    }
+
+    /**
+     * A sequence of items, like a non-cached XCC result.
+     */
+    private static class SequenceHandler extends Handler {
+
+        private Object[] items;
+
+        private int index = -1;
+
+        private boolean closed = false;
+
+        SequenceHandler(Object[] _items) {
+            items = _items;
+        }
+
+        protected int size() {
+            return items.length;
+        }
+
+        protected Object get(int _index) {
+            return items[_index];
+        }
+
+        protected Object handle(Object _proxy, String _name, Object[] _args) {
+            if ("hasNext".equals(_name)) {
+                return Boolean.valueOf(!closed && index + 1 < size());
+            }
+            if ("next".equals(_name)) {
+                if (closed || index + 1 >= size()) {
+                    throw new NoSuchElementException();
+                }
+                index++;
+                return newItem(get(index), index);
+            }
+            if ("asString".equals(_name) || "toString".equals(_name)) {
+                String separator = _args.length > 0 ? (String) _args[0]
+                        : "\n";
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < size(); i++) {
+                    if (i > 0) {
+                        sb.append(separator);
+                    }
+                    sb.append(get(i));
+                }
+                return sb.toString();
+            }
+            if ("size".equals(_name)) {
+                return Integer.valueOf(size());
+            }
+            if ("isEmpty".equals(_name)) {
+                return Boolean.valueOf(0 == size());
+            }
+            if ("close".equals(_name)) {
+                closed = true;
+                return null;
+            }
+            if ("isClosed".equals(_name)) {
+                return Boolean.valueOf(closed);
+            }
+            if ("isCached".equals(_name)) {
+                return Boolean.FALSE;
+            }
+            return unsupported(_name);
+        }
+    }
+
+    /**
+     * Like a Pascal string, the first item is the count. The uris are
+     * generated as they are read, so millions cost nothing up front.
+     */
+    private class UrisSequenceHandler extends SequenceHandler {
+
+        UrisSequenceHandler() {
+            super(null);
+        }
+
+        protected int size() {
+            return 1 + getUriCount();
+        }
+
+        protected Object get(int _index) {
+            if (0 == _index) {
+                return Integer.valueOf(getUriCount());
+            }
+            return getUri(_index - 1);
+        }
+    }
+
+    private static class ItemHandler extends Handler {
+
+        private Object value;
+
+        private int index;
+
+        ItemHandler(Object _value, int _index) {
+            value = _value;
+            index = _index;
+        }
+
+        protected Object handle(Object _proxy, String _name, Object[] _args)
+                throws IOException {
+            if ("getItem".equals(_name)) {
+                return _proxy;
+            }
+            if ("getIndex".equals(_name)) {
+                return Integer.valueOf(index);
+            }
+            if ("asString".equals(_name) || "toString".equals(_name)) {
+                return value.toString();
+            }
+            if ("asReader".equals(_name)) {
+                return new StringReader(value.toString());
+            }
+            if ("asInputStream".equals(_name)) {
+                return new ByteArrayInputStream(getBytes());
+            }
+            if ("writeTo".equals(_name)) {
+                if (_args[0] instanceof Writer) {
+                    ((Writer) _args[0]).write(value.toString());
+                } else {
+                    ((OutputStream) _args[0]).write(getBytes());
+                }
+                return null;
+            }
+            if ("isCached".equals(_name)) {
+                return Boolean.TRUE;
+            }
+            if ("isFetchable".equals(_name)) {
+                return Boolean.TRUE;
+            }
+            if ("cache".equals(_name)) {
+                return null;
+            }
+            if ("getItemType".equals(_name) || "getValueType".equals(_name)) {
+                return (value instanceof Number) ? ValueType.XS_INTEGER
+                        : ValueType.XS_STRING;
+            }
+            if ("asPrimitiveInt".equals(_name)) {
+                return Integer.valueOf(((Number) value).intValue());
+            }
+            if ("asInteger".equals(_name)) {
+                return Integer.valueOf(((Number) value).intValue());
+            }
+            if ("asPrimitiveLong".equals(_name) || "asLong".equals(_name)) {
+                return Long.valueOf(((Number) value).longValue());
+            }
+            if ("asBigInteger".equals(_name)) {
+                return BigInteger.valueOf(((Number) value).longValue());
+            }
+            return unsupported(_name);
+        }
+
+        private byte[] getBytes() throws UnsupportedEncodingException {
+            return value.toString().getBytes("UTF-8");
+        }
+    }
+
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes each result to a file of its own, named for its uri. The files are
+ * spread over two levels of subdirectories, chosen by a hash of the uri, so
+ * that no directory gets too large: there are 65536 of them.
+ *
+ * The result bytes are written as they are, with asynchronous file
+ * channels. Each write holds one of a fixed number of buffers until it
+ * completes, and a worker that needs a buffer waits for one, so the buffers
+ * bound the writes in flight and the memory they use. A worker reads the
+ * next part of a result while the last part is written, then waits for the
+ * file to be complete, so that a write that fails fails its own result.
+ */
+public class FilePerDocumentSink implements OutputSink {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int SHARD_BITS = 8;
+
+    private static final int SHARD_MASK = (1 << SHARD_BITS) - 1;
+
+    /** leave room for the hash, within common file name limits */
+    private static final int MAX_NAME_LENGTH = 200;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private File directory;
+
+    private int bufferCount;
+
+    private ArrayBlockingQueue<ByteBuffer> buffers;
+
+    /** which shard directories are known to exist */
+    private AtomicIntegerArray shards = new AtomicIntegerArray(
+            1 << (2 * SHARD_BITS));
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param _directory
+     * @param _maxWrites
+     *            the number of buffers, and so of writes in flight
+     * @throws IOException
+     */
+    public FilePerDocumentSink(File _directory, int _maxWrites)
+            throws IOException {
+        if (_maxWrites < 1) {
+            throw new IllegalArgumentException(
+                    "writes in flight must be positive: " + _maxWrites);
+        }
+        if (!_directory.isDirectory() && !_directory.mkdirs()) {
+            throw new IOException("cannot create directory " + _directory);
+        }
+        directory = _directory;
+        bufferCount = _maxWrites;
+        buffers = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            buffers.add(ByteBuffer.allocate(BUFFER_SIZE));
+        }
+    }
+
+    /**
+     * @param _uri
+     * @return the file for the uri
+     */
+    public File getFile(String _uri) {
+        int hash = mix(_uri.hashCode());
+        return new File(new File(new File(directory, hex(hash)),
+                hex(hash >>> SHARD_BITS)), encode(_uri));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.marklogic.developer.corb.OutputSink#write(java.lang.String,
+     * com.marklogic.developer.corb.OutputResult)
+     */
+    public long write(String _uri, OutputResult _result)
+            throws IOException {
+        if (closed) {
+            throw new IOException("output is closed");
+        }
+        File file = getFile(_uri);
+        ensureShard(file, mix(_uri.hashCode()));
+        FileWrite w = new FileWrite(file, AsynchronousFileChannel.open(file
+                .toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+        long position = 0;
+        ByteBuffer b = null;
+        boolean ok = false;
+        try {
+            while (_result.hasNext()) {
+                InputStream in = _result.next().asInputStream();
+                try {
+                    while (true) {
+                        if (null == b) {
+                            b = takeBuffer();
+                        }
+                        int n = in.read(b.array(), b.position(), b
+                                .remaining());
+                        if (n < 0) {
+                            break;
+                        }
+                        b.position(b.position() + n);
+                        if (!b.hasRemaining()) {
+                            position += w.write(b, position);
+                            b = null;
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            if (null != b && b.position() > 0) {
+                position += w.write(b, position);
+                b = null;
+            }
+            ok = true;
+        } finally {
+            if (null != b) {
+                returnBuffer(b);
+            }
+            w.done(ok);
+        }
+        w.await();
+        return position;
+    }
+
+    /**
+     * Wait for the writes in flight to finish: only those of failed results
+     * may still be in flight.
+     *
+     * @see com.marklogic.developer.corb.OutputSink#close()
+     */
+    public void close() throws IOException {
+        closed = true;
+        // every buffer comes back when its write completes
+        for (int i = 0; i < bufferCount; i++) {
+            try {
+                buffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while closing output");
+            }
+        }
+    }
+
+    private ByteBuffer takeBuffer() throws IOException {
+        try {
+            ByteBuffer b = buffers.take();
+            b.clear();
+            return b;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a buffer");
+        }
+    }
+
+    private void returnBuffer(ByteBuffer _buffer) {
+        buffers.add(_buffer);
+    }
+
+    private void ensureShard(File _file, int _hash) throws IOException {
+        int shard = _hash & ((1 << (2 * SHARD_BITS)) - 1);
+        if (0 != shards.get(shard)) {
+            return;
+        }
+        File dir = _file.getParentFile();
+        // another thread may be creating it too
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        shards.set(shard, 1);
+    }
+
+    private static int mix(int _hash) {
+        // spread the bits of String.hashCode, as in murmur3's finalizer
+        int h = _hash;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static String hex(int _hash) {
+        return new String(new char[] { HEX[(_hash >>> 4) & 0xf],
+                HEX[_hash & 0xf] });
+    }
+
+    /**
+     * @param _uri
+     * @return a file name that round-trips through URL decoding, or for a
+     *         very long uri, a prefix of one plus a hash of the whole uri
+     */
+    static String encode(String _uri) {
+        String name;
+        try {
+            // '*' is not safe on every filesystem
+            name = URLEncoder.encode(_uri, "UTF-8").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+        if (".".equals(name) || "..".equals(name)) {
+            return name.replace(".", "%2E");
+        }
+        if (name.length() <= MAX_NAME_LENGTH) {
+            return name;
+        }
+        long hash = 1125899906842597L;
+        for (int i = 0; i < _uri.length(); i++) {
+            hash = 31 * hash + _uri.charAt(i);
+        }
+        return name.substring(0, MAX_NAME_LENGTH - 17) + "-"
+                + Long.toHexString(hash);
+    }
+
+    /**
+     * One file, which is closed once the writer and all its writes are done.
+     */
+    private class FileWrite {
+
+        private File file;
+
+        private AsynchronousFileChannel channel;
+
+        /** the writer, plus each write in flight */
+        private AtomicInteger pending = new AtomicInteger(1);
+
+        private volatile boolean failed = false;
+
+        /** the first write or close that failed */
+        private AtomicReference<Throwable> error;
+
+        private CountDownLatch finished = new CountDownLatch(1);
+
+        FileWrite(File _file, AsynchronousFileChannel _channel) {
+            file = _file;
+            channel = _channel;
+            error = new AtomicReference<Throwable>();
+        }
+
+        /**
+         * Hand off a filled buffer. It belongs to the write until it comes
+         * back to the pool, so the caller must not touch it again.
+         *
+         * @param _buffer
+         * @param _position
+         * @return the number of bytes to be written
+         */
+        int write(ByteBuffer _buffer, long _position) {
+            _buffer.flip();
+            int length = _buffer.remaining();
+            pending.incrementAndGet();
+            channel.write(_buffer, _position, _buffer, new Chunk(_position));
+            return length;
+        }
+
+        void done(boolean _ok) {
+            if (!_ok) {
+                failed = true;
+            }
+            if (0 != pending.decrementAndGet()) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                error.compareAndSet(null, e);
+            }
+            if (failed || null != error.get()) {
+                // do not leave a partial document behind
+                file.delete();
+            }
+            finished.countDown();
+        }
+
+        /**
+         * Wait until the file is complete and closed.
+         *
+         * @throws IOException
+         *             if a write or the close failed
+         */
+        void await() throws IOException {
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while writing " + file);
+            }
+            Throwable t = error.get();
+            if (null != t) {
+                throw new IOException("cannot write " + file, t);
+            }
+        }
+
+        /**
+         * Completion of one buffer, which may take more than one write.
+         */
+        private class Chunk implements CompletionHandler<Integer, ByteBuffer> {
+
+            private long start;
+
+            Chunk(long _start) {
+                start = _start;
+            }
+
+            public void completed(Integer _written, ByteBuffer _buffer) {
+                if (_buffer.hasRemaining()) {
+                    channel.write(_buffer, start + _buffer.position(),
+                            _buffer, this);
+                    return;
+                }
+                returnBuffer(_buffer);
+                done(true);
+            }
+
+            public void failed(Throwable _exc, ByteBuffer _buffer) {
+                error.compareAndSet(null, _exc);
+                returnBuffer(_buffer);
+                done(false);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * An exclusion set that keeps only a 64-bit hash of each uri, in an
+ * open-addressing table of primitive longs: about 11 bytes per uri, instead
+ * of a String and a map entry. Two different uris have the same hash with
+ * a probability of about 2^-64, so a false match is unlikely even for
+ * billions of lookups.
+ *
+ * When that is not good enough, the verified mode also keeps each uri's
+ * byte offset in the memory-mapped exclusion file, and compares the uris
+ * themselves when the hashes match. That doubles the memory, but the
+ * matches are exact.
+ */
+public class HashExclusionSet implements ExclusionSet {
+
+    /** marks an empty slot, so no real hash may have this value */
+    private static final long EMPTY = 0;
+
+    private static final double LOAD_FACTOR = 0.75;
+
+    private long[] hashes;
+
+    /** file offsets of the uris, when verifying */
+    private long[] offsets;
+
+    private UriFile file;
+
+    private long size = 0;
+
+    /**
+     * @param _file
+     *            uris to exclude, one per line
+     * @param _verify
+     *            if true, compare the uris when the hashes match
+     */
+    public HashExclusionSet(UriFile _file, boolean _verify) {
+        long count = _file.count();
+        long capacity = Math.max(16, (long) (count / LOAD_FACTOR) + 1);
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many uris to exclude: "
+                    + count);
+        }
+        hashes = new long[(int) capacity];
+        if (_verify) {
+            file = _file;
+            offsets = new long[(int) capacity];
+        }
+        long position;
+        while ((position = _file.next()) > -1) {
+            add(_file.resolve(position), position);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.ExclusionSet#contains(java.lang.String)
+     */
+    public boolean contains(String _uri) {
+        long h = hash(_uri);
+        int slot = slot(h);
+        long found;
+        while (EMPTY != (found = hashes[slot])) {
+            if (h == found
+                    && (null == offsets || _uri.equals(file
+                            .resolve(offsets[slot])))) {
+                return true;
+            }
+            slot = next(slot);
+        }
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.ExclusionSet#size()
+     */
+    public long size() {
+        return size;
+    }
+
+    private void add(String _uri, long _position) {
+        long h = hash(_uri);
+        int slot = slot(h);
+        long found;
+        while (EMPTY != (found = hashes[slot])) {
+            if (h == found
+                    && (null == offsets || _uri.equals(file
+                            .resolve(offsets[slot])))) {
+                // a duplicate line
+                return;
+            }
+            slot = next(slot);
+        }
+        hashes[slot] = h;
+        if (null != offsets) {
+            offsets[slot] = _position;
+        }
+        size++;
+    }
+
+    private int slot(long _hash) {
+        // map the high bits onto the table, which need not be a power of two
+        return (int) (((_hash >>> 32) * hashes.length) >>> 32);
+    }
+
+    private int next(int _slot) {
+        return _slot + 1 == hashes.length ? 0 : _slot + 1;
+    }
+
+    /**
+     * @param _uri
+     * @return a well-mixed 64-bit hash, never {@link #EMPTY}
+     */
+    static long hash(String _uri) {
+        // FNV-1a over the chars, then the murmur3 finalizer
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < _uri.length(); i++) {
+            h ^= _uri.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return EMPTY == h ? 1 : h;
+    }
+
+}
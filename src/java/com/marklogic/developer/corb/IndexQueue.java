@@ -0,0 +1,173 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of positions into a uri store, for the indexed dispatch
+ * mode. The queue holds primitives in a ring buffer, so a queue of 100,000
+ * positions costs 800 KB and allocates nothing per item.
+ *
+ * A single producer puts positions, then calls {@link #close()} so that the
+ * workers can exit when the queue is empty. {@link #abort()} ends the run
+ * immediately, discarding anything still queued.
+ */
+public class IndexQueue {
+
+    private final long[] items;
+
+    private int head;
+
+    private int tail;
+
+    private int count;
+
+    private boolean closed;
+
+    private boolean aborted;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * @param _capacity
+     */
+    public IndexQueue(int _capacity) {
+        if (_capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: "
+                    + _capacity);
+        }
+        items = new long[_capacity];
+    }
+
+    /**
+     * Block until there is room for the position.
+     *
+     * @param _position
+     * @return false if the queue was aborted
+     * @throws InterruptedException
+     */
+    public boolean put(long _position) throws InterruptedException {
+        if (_position < 0) {
+            throw new IllegalArgumentException("negative position: "
+                    + _position);
+        }
+        lock.lockInterruptibly();
+        try {
+            if (closed) {
+                throw new IllegalStateException("queue is closed");
+            }
+            while (count == items.length && !aborted) {
+                notFull.await();
+            }
+            if (aborted) {
+                return false;
+            }
+            items[tail] = _position;
+            tail = (tail + 1) % items.length;
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until at least one position is available, then move up to
+     * _buffer.length of them into the buffer. To keep the workers evenly
+     * loaded, a caller never takes more than half of what is queued.
+     *
+     * @param _buffer
+     * @return the number of positions taken, or zero when the queue is
+     *         closed and empty, or aborted
+     * @throws InterruptedException
+     */
+    public int take(long[] _buffer) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (0 == count && !closed && !aborted) {
+                notEmpty.await();
+            }
+            if (aborted || 0 == count) {
+                return 0;
+            }
+            int n = Math.min(_buffer.length, (count + 1) / 2);
+            for (int i = 0; i < n; i++) {
+                _buffer[i] = items[head];
+                head = (head + 1) % items.length;
+            }
+            count -= n;
+            if (count > 0) {
+                // let another worker share what is left
+                notEmpty.signal();
+            }
+            notFull.signal();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * No more positions will be put: workers exit once the queue drains.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard any queued positions, and release all waiting threads.
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            count = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
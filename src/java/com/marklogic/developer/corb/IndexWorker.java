@@ -0,0 +1,151 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * A worker loop for the indexed dispatch mode: takes positions from the
+ * queue, resolves each one to a uri, and processes it. One Transform serves
+ * every uri the worker sees, so there is no per-task object beyond the uri
+ * string itself. With a {@link BatchProcessor}, the worker groups the uris
+ * it takes into batches instead.
+ */
+public class IndexWorker implements Runnable {
+
+    /** positions taken per trip to the queue lock */
+    private static final int BATCH_SIZE = 16;
+
+    private IndexQueue queue;
+
+    private UriIndex uris;
+
+    private Transform transform;
+
+    private CompletionTracker tracker;
+
+    private BatchProcessor batch;
+
+    private int batchSize;
+
+    /**
+     * @param _queue
+     * @param _uris
+     * @param _transform
+     * @param _tracker
+     */
+    public IndexWorker(IndexQueue _queue, UriIndex _uris,
+            Transform _transform, CompletionTracker _tracker) {
+        queue = _queue;
+        uris = _uris;
+        transform = _transform;
+        tracker = _tracker;
+    }
+
+    /**
+     * @param _queue
+     * @param _uris
+     * @param _batch
+     * @param _batchSize
+     *            uris per batch
+     * @param _tracker
+     */
+    public IndexWorker(IndexQueue _queue, UriIndex _uris,
+            BatchProcessor _batch, int _batchSize, CompletionTracker _tracker) {
+        queue = _queue;
+        uris = _uris;
+        batch = _batch;
+        batchSize = _batchSize;
+        tracker = _tracker;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        if (null != batch) {
+            runBatches();
+            return;
+        }
+        long[] positions = new long[BATCH_SIZE];
+        int n;
+        try {
+            while ((n = queue.take(positions)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    process(positions[i]);
+                }
+            }
+        } catch (InterruptedException e) {
+            // the run is stopping
+            Thread.currentThread().interrupt();
+        } finally {
+            transform.close();
+        }
+    }
+
+    private void runBatches() {
+        long[] positions = new long[Math.min(BATCH_SIZE, batchSize)];
+        String[] pending = new String[batchSize];
+        int count = 0;
+        int n;
+        try {
+            while ((n = queue.take(positions)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    String uri = uris.resolve(positions[i]);
+                    if (null == uri) {
+                        tracker.started();
+                        tracker.failed(new IllegalStateException(
+                                "no uri at position " + positions[i]));
+                        continue;
+                    }
+                    pending[count++] = uri;
+                    if (count == batchSize) {
+                        batch.process(pending, count);
+                        count = 0;
+                    }
+                }
+            }
+            // the queue is drained: finish the partial batch
+            if (count > 0) {
+                batch.process(pending, count);
+            }
+        } catch (InterruptedException e) {
+            // the run is stopping
+            Thread.currentThread().interrupt();
+        } finally {
+            batch.close();
+        }
+    }
+
+    private void process(long _position) {
+        tracker.started();
+        try {
+            String uri = uris.resolve(_position);
+            if (null == uri) {
+                throw new IllegalStateException("no uri at position "
+                        + _position);
+            }
+            transform.process(uri);
+            tracker.completed();
+        } catch (Throwable t) {
+            tracker.failed(t);
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.NoSuchElementException;
+
+/**
+ * Output produced on the client, or read back from a {@link ResultCache},
+ * as an {@link OutputResult}, so that it can go to any {@link OutputSink}.
+ */
+class LocalResults implements OutputResult {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String[] values;
+
+    private int next = 0;
+
+    /**
+     * @param _values
+     *            the text of each item
+     */
+    LocalResults(String[] _values) {
+        values = _values;
+    }
+
+    /**
+     * @param _value
+     *            the text of the only item, or null for an empty sequence
+     * @return
+     */
+    static OutputResult newSequence(String _value) {
+        return newSequence(null == _value ? new String[0]
+                : new String[] { _value });
+    }
+
+    /**
+     * @param _values
+     *            the text of each item
+     * @return
+     */
+    static OutputResult newSequence(String[] _values) {
+        return new LocalResults(_values);
+    }
+
+    /**
+     * @param _value
+     *            the text of the item
+     * @return
+     */
+    static OutputItem newItem(String _value) {
+        return new Item(_value);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.OutputResult#hasNext()
+     */
+    public boolean hasNext() {
+        return next < values.length;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.OutputResult#next()
+     */
+    public OutputItem next() {
+        if (next >= values.length) {
+            throw new NoSuchElementException();
+        }
+        return new Item(values[next++]);
+    }
+
+    /**
+     * One item of text.
+     */
+    private static class Item implements OutputItem {
+
+        private String value;
+
+        Item(String _value) {
+            value = _value;
+        }
+
+        public Reader asReader() {
+            return new StringReader(value);
+        }
+
+        public InputStream asInputStream() {
+            // like XCC, so raw output is the same from the cache
+            return new ByteArrayInputStream(value.getBytes(UTF8));
+        }
+
+        public String asString() {
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * Transforms documents on the client, for bulk fetch runs: the documents
+ * are fetched in batches, and transformed across the cores of a fork-join
+ * pool instead of on the database hosts.
+ *
+ * Documents are transformed concurrently, so implementations must be
+ * thread-safe. Set one with {@link Manager#setLocalTransform(LocalTransform)},
+ * or name a class with a public no-argument constructor in the
+ * local.transform system property.
+ */
+public interface LocalTransform {
+
+    /**
+     * @param _uri
+     * @param _document
+     *            the serialized document
+     * @return the output for the document, or null for none
+     * @throws Exception
+     *             to fail the uri
+     */
+    String transform(String _uri, String _document) throws Exception;
+
+}
@@ -19,27 +19,33 @@
 package com.marklogic.developer.corb;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -62,6 +68,7 @@ import com.marklogic.xcc.SecurityOptions;
 import com.marklogic.xcc.Session;
 import com.marklogic.xcc.exceptions.RequestException;
 import com.marklogic.xcc.exceptions.XccConfigException;
+import com.marklogic.xcc.exceptions.XQueryException;
 import com.marklogic.xcc.exceptions.XccException;
 import com.marklogic.xcc.types.XSInteger;
 import com.marklogic.xcc.types.XdmItem;
@@ -74,14 +81,85 @@ public class Manager implements Runnable {
 
     public static final String OUTPUT_FILE_NAME_FORMAT = "output.file.name.format";
 
+    public static final String PERFORMANCE_REPORT_FILE = "performance.report.file";
+
+    public static final String TRACE_FILE = "trace.file";
+
+    public static final String EXECUTOR_MODE = "executor.mode";
+
+    public static final String DISPATCH_MODE = "dispatch.mode";
+
+    public static final String QUEUE_SIZE = "queue.size";
+
+    public static final String OUTPUT_RECORDS = "output.records";
+
+    public static final String OUTPUT_FORMAT = "output.format";
+
+    public static final String OUTPUT_FRAMING = "output.framing";
+
+    public static final String OUTPUT_DELIMITER = "output.delimiter";
+
+    public static final String OUTPUT_DIRECTORY = "output.directory";
+
+    public static final String OUTPUT_MAX_WRITES = "output.max.writes";
+
+    public static final String OUTPUT_MAX_OPEN = "output.max.open";
+
+    public static final String OUTPUT_ROLL_BYTES = "output.roll.bytes";
+
+    public static final String OUTPUT_ROLL_RECORDS = "output.roll.records";
+
+    public static final String OUTPUT_MANIFEST = "output.manifest";
+
+    public static final String OUTPUT_SORT = "output.sort";
+
+    public static final String OUTPUT_SORT_MEMORY = "output.sort.memory";
+
+    public static final String OUTPUT_SORT_DIRECTORY = "output.sort.directory";
+
+    public static final String OUTPUT_AGGREGATE = "output.aggregate";
+
+    public static final String UPDATE_BATCH_SIZE = "update.batch.size";
+
+    public static final String LOCAL_TRANSFORM = "local.transform";
+
+    public static final String FETCH_BATCH_SIZE = "fetch.batch.size";
+
+    public static final String URIS_FILE = "uris.file";
+
+    public static final String URIS_EXCLUDE = "uris.exclude";
+
+    public static final String URIS_EXCLUDE_MODE = "uris.exclude.mode";
+
+    public static final String URIS_EXCLUDE_FPP = "uris.exclude.fpp";
+
+    public static final String WATERMARK_FILE = "watermark.file";
+
+    public static final String WATERMARK_OVERLAP = "watermark.overlap";
+
+    public static final String RESULT_CACHE = "result.cache";
+
+    public static final String RESULT_CACHE_MAX_BYTES = "result.cache.max.bytes";
+
+    public static final String POINT_IN_TIME = "point.in.time";
+
     public static String VERSION = "2012-03-14.1";
 
-    public class CallerBlocksPolicy implements RejectedExecutionHandler {
+    public static class CallerBlocksPolicy implements RejectedExecutionHandler {
 
         private BlockingQueue<Runnable> queue;
 
         private boolean warning = false;
 
+        private SimpleLogger logger;
+
+        /**
+         * @param _logger
+         */
+        public CallerBlocksPolicy(SimpleLogger _logger) {
+            logger = _logger;
+        }
+
         /*
          * (non-Javadoc)
          *
@@ -126,6 +204,15 @@ public class Manager implements Runnable {
      */
     private static final String XQUERY_VERSION_0_9_ML = "xquery version \"0.9-ml\"\n";
 
+    /** returns the modules database and root of the app server */
+    static final String STATUS_QUERY = XQUERY_VERSION_0_9_ML
+            + DECLARE_NAMESPACE_MLSS_XDMP_STATUS_SERVER
+            + "let $status := \n"
+            + " xdmp:server-status(xdmp:host(), xdmp:server())\n"
+            + "let $modules := $status/mlss:modules\n"
+            + "let $root := $status/mlss:root\n"
+            + "return (data($modules), data($root))";
+
     /**
      *
      */
@@ -137,7 +224,10 @@ public class Manager implements Runnable {
 
     private TransformOptions options = new TransformOptions();
 
-    private ThreadPoolExecutor pool = null;
+    private volatile ExecutorService pool = null;
+
+    /** only used by the indexed dispatch mode */
+    private volatile IndexQueue indexQueue = null;
 
     private ContentSource contentSource;
 
@@ -145,13 +235,47 @@ public class Manager implements Runnable {
 
     private SimpleLogger logger;
 
-    private SimpleLogger outputLogger;
+    private OutputSink outputSink;
+
+    /** holds the %u of the output pattern */
+    private OutputLock outputLock;
 
     private String moduleUri;
 
     private Thread monitorThread;
 
-    private ExecutorCompletionService<String> completionService;
+    private CompletionTracker completionTracker;
+
+    /** the error that stopped the run, from the monitor thread */
+    private volatile Throwable fatalError;
+
+    private RunStatistics stats;
+
+    private TraceRecorder traceRecorder;
+
+    private ResultSink resultSink;
+
+    private LocalTransform localTransform;
+
+    /** runs the local transform, if there is one */
+    private ForkJoinPool localPool;
+
+    private ExclusionSet exclusions;
+
+    /** mapped uri files, to close when the run ends */
+    private List<UriFile> uriFiles = new ArrayList<UriFile>();
+
+    private Watermark watermark;
+
+    private ResultCache resultCache;
+
+    /** tasks the run should complete, once the uris are counted */
+    private long expectedCount = -1;
+
+    /** the batch being filled, for batched task dispatch */
+    private String[] pendingBatch;
+
+    private int pendingCount;
 
     /**
      * @param connectionUri
@@ -164,6 +288,44 @@ public class Manager implements Runnable {
         this.collection = collection;
     }
 
+    /**
+     * For programs that embed corb: build the options with
+     * {@link TransformOptions.Builder}, then call {@link #run()}. System
+     * properties are not read.
+     *
+     * @param connectionUri
+     * @param collection
+     * @param options
+     */
+    public Manager(URI connectionUri, String collection,
+            TransformOptions options) {
+        this(connectionUri, collection);
+        if (null == options) {
+            throw new NullPointerException("options");
+        }
+        this.options = options;
+    }
+
+    /**
+     * Send results to a sink instead of the output file. Call before
+     * {@link #run()}.
+     *
+     * @param sink
+     */
+    public void setResultSink(ResultSink sink) {
+        this.resultSink = sink;
+    }
+
+    /**
+     * Fetch documents in batches and transform them on the client, instead
+     * of running the process module. Call before {@link #run()}.
+     *
+     * @param transform
+     */
+    public void setLocalTransform(LocalTransform transform) {
+        this.localTransform = transform;
+    }
+
     /**
      * @param args
      * @throws URISyntaxException
@@ -205,6 +367,134 @@ public class Manager implements Runnable {
         if (outputFileNameFormat != null) {
             options.setOutputLogFileNameFormat(outputFileNameFormat);
         }
+        String outputRecords = System.getProperty(OUTPUT_RECORDS);
+        if (outputRecords != null) {
+            options.setOutputRecords(outputRecords);
+        }
+        String outputFormat = System.getProperty(OUTPUT_FORMAT);
+        if (outputFormat != null) {
+            options.setOutputFormat(outputFormat);
+        }
+        String outputFraming = System.getProperty(OUTPUT_FRAMING);
+        if (outputFraming != null) {
+            options.setOutputFraming(outputFraming);
+        }
+        String outputDelimiter = System.getProperty(OUTPUT_DELIMITER);
+        if (outputDelimiter != null) {
+            options.setOutputDelimiter(outputDelimiter);
+        }
+        String outputDirectory = System.getProperty(OUTPUT_DIRECTORY);
+        if (outputDirectory != null) {
+            options.setOutputDirectory(outputDirectory);
+        }
+        String outputMaxWrites = System.getProperty(OUTPUT_MAX_WRITES);
+        if (outputMaxWrites != null) {
+            options.setOutputMaxWrites(Integer.parseInt(outputMaxWrites));
+        }
+        String outputMaxOpen = System.getProperty(OUTPUT_MAX_OPEN);
+        if (outputMaxOpen != null) {
+            options.setOutputMaxOpen(Integer.parseInt(outputMaxOpen));
+        }
+        String outputRollBytes = System.getProperty(OUTPUT_ROLL_BYTES);
+        if (outputRollBytes != null) {
+            options.setOutputRollBytes(Long.parseLong(outputRollBytes));
+        }
+        String outputRollRecords = System.getProperty(OUTPUT_ROLL_RECORDS);
+        if (outputRollRecords != null) {
+            options.setOutputRollRecords(Long.parseLong(outputRollRecords));
+        }
+        String outputManifest = System.getProperty(OUTPUT_MANIFEST);
+        if (outputManifest != null) {
+            options.setOutputManifest(outputManifest);
+        }
+        String outputSort = System.getProperty(OUTPUT_SORT);
+        if (outputSort != null) {
+            options.setOutputSort(outputSort);
+        }
+        String outputSortMemory = System.getProperty(OUTPUT_SORT_MEMORY);
+        if (outputSortMemory != null) {
+            options.setOutputSortMemory(Long.parseLong(outputSortMemory));
+        }
+        String outputSortDirectory = System.getProperty(OUTPUT_SORT_DIRECTORY);
+        if (outputSortDirectory != null) {
+            options.setOutputSortDirectory(outputSortDirectory);
+        }
+        String outputAggregate = System.getProperty(OUTPUT_AGGREGATE);
+        if (outputAggregate != null) {
+            options.setOutputAggregate(outputAggregate);
+        }
+        String updateBatchSize = System.getProperty(UPDATE_BATCH_SIZE);
+        if (updateBatchSize != null) {
+            options.setUpdateBatchSize(Integer.parseInt(updateBatchSize));
+        }
+        String localTransform = System.getProperty(LOCAL_TRANSFORM);
+        if (localTransform != null) {
+            options.setLocalTransform(localTransform);
+        }
+        String fetchBatchSize = System.getProperty(FETCH_BATCH_SIZE);
+        if (fetchBatchSize != null) {
+            options.setFetchBatchSize(Integer.parseInt(fetchBatchSize));
+        }
+        String urisFile = System.getProperty(URIS_FILE);
+        if (urisFile != null) {
+            options.setUrisFile(urisFile);
+        }
+        String urisExclude = System.getProperty(URIS_EXCLUDE);
+        if (urisExclude != null) {
+            options.setUrisExclude(urisExclude);
+        }
+        String urisExcludeMode = System.getProperty(URIS_EXCLUDE_MODE);
+        if (urisExcludeMode != null) {
+            options.setUrisExcludeMode(urisExcludeMode);
+        }
+        String urisExcludeFpp = System.getProperty(URIS_EXCLUDE_FPP);
+        if (urisExcludeFpp != null) {
+            options.setUrisExcludeFalsePositiveRate(Double
+                    .parseDouble(urisExcludeFpp));
+        }
+        String watermarkFile = System.getProperty(WATERMARK_FILE);
+        if (watermarkFile != null) {
+            options.setWatermarkFile(watermarkFile);
+        }
+        String watermarkOverlap = System.getProperty(WATERMARK_OVERLAP);
+        if (watermarkOverlap != null) {
+            options.setWatermarkOverlap(Long.parseLong(watermarkOverlap));
+        }
+        String resultCache = System.getProperty(RESULT_CACHE);
+        if (resultCache != null) {
+            options.setResultCache(resultCache);
+        }
+        String resultCacheMaxBytes = System
+                .getProperty(RESULT_CACHE_MAX_BYTES);
+        if (resultCacheMaxBytes != null) {
+            options.setResultCacheMaxBytes(Long
+                    .parseLong(resultCacheMaxBytes));
+        }
+        String pointInTime = System.getProperty(POINT_IN_TIME);
+        if (pointInTime != null) {
+            options.setPointInTime(pointInTime);
+        }
+        String performanceReportFile = System
+                .getProperty(PERFORMANCE_REPORT_FILE);
+        if (performanceReportFile != null) {
+            options.setPerformanceReportFile(performanceReportFile);
+        }
+        String traceFile = System.getProperty(TRACE_FILE);
+        if (traceFile != null) {
+            options.setTraceFile(traceFile);
+        }
+        String executorMode = System.getProperty(EXECUTOR_MODE);
+        if (executorMode != null) {
+            options.setExecutorMode(executorMode);
+        }
+        String dispatchMode = System.getProperty(DISPATCH_MODE);
+        if (dispatchMode != null) {
+            options.setDispatchMode(dispatchMode);
+        }
+        String queueSize = System.getProperty(QUEUE_SIZE);
+        if (queueSize != null) {
+            options.setQueueSize(Integer.parseInt(queueSize));
+        }
         tm.run();
     }
 
@@ -228,14 +518,18 @@ public class Manager implements Runnable {
                 + " [ modules-database [ install ] ] ] ] ]");
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Run to completion. An error that stops the run, such as the first
+     * failed uri, is thrown once the output is closed.
      *
-     * @see java.lang.Runnable#run()
+     * @throws RuntimeException
+     *             wrapping the error that stopped the run
      */
     public void run() {
+        stats = new RunStatistics();
+        stats.start();
         configureLogger();
-        configureOutputLogger();
+        configureOutput();
         logger.info(NAME + " starting: " + versionMessage);
         long maxMemory = Runtime.getRuntime().maxMemory() / (1024 * 1024);
         logger.info("maximum heap size = " + maxMemory + " MiB");
@@ -247,6 +541,7 @@ public class Manager implements Runnable {
         prepareContentSource();
         registerStatusInfo();
         prepareModules();
+        prepareTrace();
         monitorThread = preparePool();
 
         try {
@@ -267,6 +562,124 @@ public class Manager implements Runnable {
             stop();
             // fatal
             throw new RuntimeException(e);
+        } finally {
+            if (null != localPool) {
+                localPool.shutdown();
+            }
+            boolean outputComplete = closeOutput();
+            closeTrace();
+            closeResultCache();
+            closeUriFiles();
+            saveWatermark(outputComplete);
+            reportStatistics();
+        }
+        if (null != fatalError) {
+            throw new RuntimeException(fatalError);
+        }
+    }
+
+    /**
+     * @return the number of uris that completed, so far
+     */
+    public long getCompletedCount() {
+        return null == completionTracker ? 0 : completionTracker
+                .getCompletedCount();
+    }
+
+    /**
+     * @return the number of uris that failed, so far
+     */
+    public long getFailedCount() {
+        return null == completionTracker ? 0 : completionTracker
+                .getFailedCount();
+    }
+
+    private void prepareTrace() {
+        String path = options.getTraceFile();
+        if (null == path) {
+            return;
+        }
+        logger.info("recording trace to " + path);
+        try {
+            traceRecorder = new TraceRecorder(new File(path));
+        } catch (IOException e) {
+            logger.logException("fatal error", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void closeTrace() {
+        if (null == traceRecorder) {
+            return;
+        }
+        try {
+            traceRecorder.close();
+        } catch (IOException e) {
+            logger.logException("trace is incomplete: "
+                    + traceRecorder.getFile(), e);
+        }
+    }
+
+    private void closeUriFiles() {
+        for (UriFile file : uriFiles) {
+            file.close();
+        }
+        uriFiles.clear();
+    }
+
+    private void closeResultCache() {
+        if (null == resultCache) {
+            return;
+        }
+        logger.info("result cache: " + resultCache.getHits() + " hits, "
+                + resultCache.getMisses() + " misses, "
+                + resultCache.size() + " uris");
+        if (resultCache.isFull()) {
+            logger.warning("result cache reached "
+                    + options.getResultCacheMaxBytes()
+                    + " bytes: some results were not cached");
+        }
+        try {
+            resultCache.close();
+        } catch (IOException e) {
+            logger.logException("could not close the result cache "
+                    + resultCache.getFile(), e);
+        }
+    }
+
+    /**
+     * Log a summary of the run's resource use, and optionally write it to
+     * a file so that runs can be compared.
+     */
+    private void reportStatistics() {
+        stats.finish();
+        stats.setThreadCount(options.getThreadCount());
+        if (null != monitor) {
+            stats.setCompletedTaskCount(monitor.getCompletedTaskCount());
+        }
+        String report = stats.toJson();
+        logger.info("performance report: " + report);
+
+        String path = options.getPerformanceReportFile();
+        if (null == path) {
+            return;
+        }
+        FileWriter w = null;
+        try {
+            w = new FileWriter(path);
+            w.write(report);
+            w.write("\n");
+        } catch (IOException e) {
+            logger.logException("could not write performance report to "
+                    + path, e);
+        } finally {
+            if (null != w) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    logger.logException(path, e);
+                }
+            }
         }
     }
 
@@ -274,17 +687,43 @@ public class Manager implements Runnable {
      * @return
      */
     private Thread preparePool() {
-        RejectedExecutionHandler policy = new CallerBlocksPolicy();
         int threads = options.getThreadCount();
-        // an array queue should be somewhat lighter-weight
-        BlockingQueue<Runnable> workQueue = new ArrayBlockingQueue<Runnable>(
-                options.getQueueSize());
-        pool = new ThreadPoolExecutor(threads, threads, 16,
-                TimeUnit.SECONDS, workQueue, policy);
-        pool.prestartAllCoreThreads();
-        completionService = new ExecutorCompletionService<String>(pool);
-        monitor = new Monitor(pool, completionService, this, logger);
-        Thread monitorThread = new Thread(monitor);
+        if (TransformOptions.EXECUTOR_VIRTUAL.equals(options
+                .getExecutorMode())) {
+            ThreadFactory factory = VirtualThreadExecutor
+                    .newVirtualThreadFactory("corb-worker");
+            if (null == factory) {
+                logger.warning("virtual threads are not available on "
+                        + System.getProperty("java.version")
+                        + ": using platform threads");
+            } else {
+                logger.info("using virtual threads, at most " + threads
+                        + " in flight");
+                pool = new VirtualThreadExecutor(threads, factory);
+            }
+        }
+        if (TransformOptions.EXECUTOR_WORK_STEALING.equals(options
+                .getExecutorMode())) {
+            logger.info("using a work-stealing pool of " + threads
+                    + " threads");
+            pool = new WorkStealingExecutor(threads, options.getQueueSize(),
+                    stats.newForkJoinWorkerThreadFactory());
+        }
+        if (null == pool) {
+            RejectedExecutionHandler policy = new CallerBlocksPolicy(logger);
+            // an array queue should be somewhat lighter-weight
+            BlockingQueue<Runnable> workQueue = new ArrayBlockingQueue<Runnable>(
+                    options.getQueueSize());
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads,
+                    16, TimeUnit.SECONDS, workQueue, stats
+                            .newThreadFactory("corb-worker"), policy);
+            tpe.prestartAllCoreThreads();
+            pool = tpe;
+        }
+        completionTracker = new CompletionTracker();
+        monitor = new Monitor(pool, completionTracker, this, logger);
+        Thread monitorThread = stats.newThreadFactory("corb-monitor")
+                .newThread(monitor);
         return monitorThread;
     }
 
@@ -364,6 +803,12 @@ public class Manager implements Runnable {
     private void prepareContentSource() {
         logger.info("using content source " + connectionUri);
         try {
+            if (FakeContentSource.SCHEME.equals(connectionUri.getScheme())) {
+                logger.warning("using a simulated content source");
+                contentSource = FakeContentSource
+                        .newContentSource(connectionUri);
+                return;
+            }
             // support SSL
             boolean ssl = connectionUri.getScheme().equals("xccs");
             contentSource = ssl ? ContentSourceFactory.newContentSource(
@@ -384,13 +829,7 @@ public class Manager implements Runnable {
 
     private void registerStatusInfo() {
         Session session = contentSource.newSession();
-        AdhocQuery q = session.newAdhocQuery(XQUERY_VERSION_0_9_ML
-                + DECLARE_NAMESPACE_MLSS_XDMP_STATUS_SERVER
-                + "let $status := \n"
-                + " xdmp:server-status(xdmp:host(), xdmp:server())\n"
-                + "let $modules := $status/mlss:modules\n"
-                + "let $root := $status/mlss:root\n"
-                + "return (data($modules), data($root))");
+        AdhocQuery q = session.newAdhocQuery(STATUS_QUERY);
         ResultSequence rs = null;
         try {
             rs = session.submitRequest(q);
@@ -426,6 +865,31 @@ public class Manager implements Runnable {
         TaskFactory tf = new TaskFactory(contentSource, options
                 .getModuleRoot()
                 + options.getProcessModule());
+        tf.setLogger(logger);
+        tf.setTraceRecorder(traceRecorder);
+        tf.setCompletionTracker(completionTracker);
+        prepareLocalTransform(tf);
+        prepareResultCache(tf);
+        prepareExclusions();
+        if (null != options.getWatermarkFile()) {
+            if (null != options.getUrisFile()) {
+                logger.warning("a uris file has no watermark: ignoring "
+                        + WATERMARK_FILE);
+            } else {
+                watermark = new Watermark(new File(options
+                        .getWatermarkFile()), options.getWatermarkOverlap());
+            }
+        }
+        if (null != options.getUrisFile()) {
+            Session session = contentSource.newSession();
+            try {
+                preparePointInTime(tf, session);
+            } finally {
+                session.close();
+            }
+            populateQueueFromFile(tf);
+            return;
+        }
 
         // must not cache the results, or we quickly run out of memory
         RequestOptions opts = new RequestOptions();
@@ -440,12 +904,27 @@ public class Manager implements Runnable {
         Session session = null;
         int count = 0;
         int total = -1;
+        long excluded = 0;
 
         try {
             session = contentSource.newSession();
+            String since = "";
+            if (null != watermark) {
+                since = startWatermark(session);
+            }
+            // after the watermark, so the snapshot misses no update
+            BigInteger timestamp = preparePointInTime(tf, session);
+            if (null != watermark && null != timestamp
+                    && !TransformOptions.POINT_IN_TIME_START.equals(options
+                            .getPointInTime())) {
+                // an earlier snapshot has none of the updates since then
+                snapshotWatermark(session, timestamp);
+            }
+            opts.setEffectivePointInTime(timestamp);
             String urisModule = options.getModuleRoot()
                     + options.getUrisModule();
             logger.info("invoking module " + urisModule);
+            stats.startPhase(RunStatistics.PHASE_ENUMERATION);
             Request req = session.newModuleInvoke(urisModule);
             // NOTE: collection will be treated as a CWSV
             req.setNewStringVariable("URIS", collection);
@@ -453,6 +932,7 @@ public class Manager implements Runnable {
             req.setNewStringVariable("TYPE",
                     TransformOptions.COLLECTION_TYPE);
             req.setNewStringVariable("PATTERN", "[,\\s]+");
+            req.setNewStringVariable("SINCE", since);
             req.setOptions(opts);
 
             ResultSequence res = session.submitRequest(req);
@@ -460,6 +940,8 @@ public class Manager implements Runnable {
             // like a Pascal string, the first item will be the count
             total = ((XSInteger) res.next().getItem()).asPrimitiveInt();
             logger.info("expecting total " + total);
+            stats.setTaskCount(total);
+            expectedCount = total;
             if (0 == total) {
                 logger.info("nothing to process");
                 stop();
@@ -476,15 +958,26 @@ public class Manager implements Runnable {
             long lastMessageMillis = System.currentTimeMillis();
             long freeMemory;
             boolean isFirst = true;
-            // char primitives use less memory than strings
-            // arrays use less memory than lists or queues
-            char[][] urisArray = new char[total][];
+            // the first uri to queue after they have all been received
+            int first = 1;
+            UriStore uris = new UriStore(total);
+            if (TransformOptions.DISPATCH_INDEX.equals(options
+                    .getDispatchMode())) {
+                startWorkers(tf, uris);
+            }
 
             count = 0;
             while (res.hasNext() && null != pool) {
                 uri = res.next().asString();
+                if (null != exclusions && exclusions.contains(uri)) {
+                    excluded++;
+                    continue;
+                }
+                if (null != traceRecorder) {
+                    traceRecorder.recordUri(uri);
+                }
 
-                if (count >= urisArray.length) {
+                if (count >= uris.size()) {
                     throw new
                         ArrayIndexOutOfBoundsException("received more than "
                                                        + total
@@ -496,11 +989,20 @@ public class Manager implements Runnable {
                 // all uris queue as quickly as possible
                 if (isFirst) {
                     isFirst = false;
-                    completionService.submit(tf.newTask(uri, outputLogger));
-                    urisArray[count] = null;
+                    if (null != indexQueue) {
+                        uris.set(count, uri);
+                        dispatch(count);
+                    } else if (isBatched()) {
+                        // the first batch takes it
+                        uris.set(count, uri);
+                        first = 0;
+                    } else {
+                        submit(tf.newTask(uri, outputSink));
+                        uris.set(count, null);
+                    }
                     logger.info("received first uri: " + uri);
                 } else {
-                    urisArray[count] = uri.toCharArray();
+                    uris.set(count, uri);
                 }
                 count++;
 
@@ -523,42 +1025,66 @@ public class Manager implements Runnable {
             }
 
             logger.info("received " + count + "/" + total);
+            stats.startPhase(RunStatistics.PHASE_PROCESSING);
             // done with result set - close session to close everything
             if (null != session) {
                 session.close();
             }
+            if (!setExcludedCount(excluded, total)) {
+                return;
+            }
 
-            // start with 1 not 0 because we already queued result 0
-            for (int i=1; i<urisArray.length; i++) {
+            boolean finest = logger.isLoggable(Level.FINEST);
+            if (isBatched() && null == indexQueue) {
+                logBatching();
+                pendingBatch = new String[getBatchSize()];
+            }
+            // usually start with 1 not 0 because we already queued result 0
+            for (int i=first; i<count; i++) {
                 // check pool occasionally, for fast-fail
                 if (null == pool) {
                     break;
                 }
-                uri = new String(urisArray[i]);
-                completionService.submit(tf.newTask(uri, outputLogger));
-                urisArray[i] = null;
-
-                String msg = "queued " + i + "/" + total + ": " + uri;
-                if (0 == i % 50000) {
-                    logger.info(msg);
-                    freeMemory = Runtime.getRuntime().freeMemory();
-                    if (freeMemory < (16 * 1024 * 1024)) {
-                        logger.warning("free memory: "
-                                       + (freeMemory / (1024 * 1024))
-                                       + " MiB");
+                if (null != indexQueue) {
+                    // the worker will resolve the uri
+                    uri = null;
+                    if (!dispatch(i)) {
+                        break;
                     }
-                    lastMessageMillis = System.currentTimeMillis();
                 } else {
-                    logger.finest(msg);
+                    uri = uris.remove(i);
+                    if (!queueTask(tf, uri)) {
+                        break;
+                    }
+                }
+
+                // only build the message when it will be logged
+                boolean progress = 0 == i % 50000;
+                if (progress || finest) {
+                    String msg = "queued " + i + "/" + total
+                            + (null == uri ? "" : ": " + uri);
+                    if (progress) {
+                        logger.info(msg);
+                        freeMemory = Runtime.getRuntime().freeMemory();
+                        if (freeMemory < (16 * 1024 * 1024)) {
+                            logger.warning("free memory: "
+                                           + (freeMemory / (1024 * 1024))
+                                           + " MiB");
+                        }
+                        lastMessageMillis = System.currentTimeMillis();
+                    } else {
+                        logger.finest(msg);
+                    }
                 }
                 if (i > total) {
                     logger.warning("expected " + total + ", got " + i);
                     logger.warning("check your uri module!");
                 }
             }
-            logger.info("queued " + urisArray.length + "/" + total);
-            urisArray = null;
-            pool.shutdown();
+            flushBatch(tf);
+            logger.info("queued " + count + "/" + total);
+            uris = null;
+            finishQueue();
 
         } catch (XccException e) {
             stop();
@@ -573,10 +1099,473 @@ public class Manager implements Runnable {
             return;
         }
 
-        assert total == count;
+        assert total == count + excluded;
         logger.fine("queue is populated with " + total + " tasks");
     }
 
+    /**
+     * Queue the uris listed in a local file, instead of running the uris
+     * module. In the indexed dispatch mode, only byte offsets are queued.
+     *
+     * @param _tf
+     */
+    private void populateQueueFromFile(TaskFactory _tf) {
+        File file = new File(options.getUrisFile());
+        logger.info("reading uris from " + file);
+        stats.startPhase(RunStatistics.PHASE_ENUMERATION);
+        UriFile uris;
+        try {
+            uris = new UriFile(file);
+            // the indexed workers resolve offsets until the run ends
+            uriFiles.add(uris);
+        } catch (IOException e) {
+            logger.logException("fatal error", e);
+            stop();
+            throw new RuntimeException(e);
+        }
+        long position = uris.next();
+        if (position < 0) {
+            logger.info("nothing to process");
+            stop();
+            return;
+        }
+        // queue as the file is scanned: the total is known at the end
+        monitor.setTaskCount(Monitor.UNKNOWN_TASK_COUNT);
+        monitorThread.start();
+        stats.startPhase(RunStatistics.PHASE_PROCESSING);
+
+        if (TransformOptions.DISPATCH_INDEX.equals(options
+                .getDispatchMode())) {
+            startWorkers(_tf, uris);
+        } else if (isBatched()) {
+            logBatching();
+            pendingBatch = new String[getBatchSize()];
+        }
+        long count = 0;
+        long excluded = 0;
+        for (; null != pool && position > -1; position = uris.next()) {
+            String uri = null;
+            if (null == indexQueue || null != traceRecorder
+                    || null != exclusions) {
+                uri = uris.resolve(position);
+            }
+            if (null != exclusions && exclusions.contains(uri)) {
+                excluded++;
+                continue;
+            }
+            if (null != traceRecorder) {
+                traceRecorder.recordUri(uri);
+            }
+            if (null != indexQueue) {
+                // the worker will resolve the uri
+                if (!dispatch(position)) {
+                    break;
+                }
+            } else if (!queueTask(_tf, uri)) {
+                break;
+            }
+            count++;
+            if (0 == count % 50000) {
+                logger.info("queued " + count
+                        + (null == uri ? "" : ": " + uri));
+            }
+        }
+        flushBatch(_tf);
+        long total = count + excluded;
+        logger.info("queued " + count + "/" + total);
+        stats.setTaskCount(total);
+        expectedCount = total;
+        monitor.setTaskCount(total);
+        if (setExcludedCount(excluded, total)) {
+            finishQueue();
+        }
+    }
+
+    /**
+     * Note the server clock, before enumerating, and read the last
+     * watermark.
+     *
+     * @param _session
+     * @return the dateTime to enumerate from, or an empty string
+     * @throws XccException
+     */
+    private String startWatermark(Session _session) throws XccException {
+        ResultSequence time = _session.submitRequest(_session
+                .newAdhocQuery(Watermark.TIME_QUERY));
+        try {
+            watermark.setStart(time.next().asString());
+        } finally {
+            time.close();
+        }
+        String since;
+        try {
+            since = watermark.getSince();
+        } catch (IOException e) {
+            logger.logException("fatal error", e);
+            throw new RuntimeException(e);
+        }
+        if ("".equals(since)) {
+            logger.info("no watermark in " + watermark.getFile()
+                    + ": enumerating everything");
+        } else {
+            logger.info("enumerating documents modified since " + since
+                    + ", from " + watermark.getFile());
+        }
+        return since;
+    }
+
+    /**
+     * Start the watermark from a point in time, rather than from now, so
+     * that the next run picks up the updates this one cannot see.
+     *
+     * @param _session
+     * @param _timestamp
+     * @throws XccException
+     */
+    private void snapshotWatermark(Session _session, BigInteger _timestamp)
+            throws XccException {
+        Request req = _session.newAdhocQuery(Watermark.SNAPSHOT_TIME_QUERY);
+        req.setNewStringVariable("TIMESTAMP", _timestamp.toString());
+        ResultSequence time = _session.submitRequest(req);
+        try {
+            watermark.setStart(time.next().asString());
+        } finally {
+            time.close();
+        }
+        logger.info("the watermark starts from point in time " + _timestamp
+                + ", at " + watermark.getStart());
+    }
+
+    /**
+     * Fix the timestamp that every query runs at, if the run is to see a
+     * single point in time.
+     *
+     * @param _tf
+     * @param _session
+     * @return the timestamp, or null for the latest state
+     * @throws XccException
+     */
+    /**
+     * Queries can run at a point in time, but updates cannot: the process
+     * module must be read-only, or its first request fails with
+     * XDMP-UPDATEPIT, which stops the run.
+     *
+     * @param _tf
+     * @param _session
+     * @return the timestamp, or null to run at the current time
+     * @throws XccException
+     */
+    private BigInteger preparePointInTime(TaskFactory _tf, Session _session)
+            throws XccException {
+        String value = options.getPointInTime();
+        if (TransformOptions.POINT_IN_TIME_NONE.equals(value)) {
+            return null;
+        }
+        if (options.getUpdateBatchSize() > 1) {
+            logger.warning("updates cannot run at a point in time: ignoring "
+                    + POINT_IN_TIME);
+            return null;
+        }
+        BigInteger timestamp = TransformOptions.POINT_IN_TIME_START
+                .equals(value) ? _session.getCurrentServerPointInTime()
+                : new BigInteger(value);
+        logger.info("running at point in time " + timestamp
+                + ": to see the same state again, use -D" + POINT_IN_TIME
+                + "=" + timestamp);
+        logger.info("the process module must not update");
+        _tf.setPointInTime(timestamp);
+        return timestamp;
+    }
+
+    /**
+     * Open the result cache, if there is one.
+     *
+     * @param _tf
+     */
+    private void prepareResultCache(TaskFactory _tf) {
+        String path = options.getResultCache();
+        if (null == path) {
+            return;
+        }
+        if (null != localTransform) {
+            logger.warning("a local transform does not use the process"
+                    + " module: ignoring " + RESULT_CACHE);
+            return;
+        }
+        if (options.getUpdateBatchSize() > 1) {
+            logger.warning("updates cannot be served from a cache: ignoring "
+                    + RESULT_CACHE);
+            return;
+        }
+        String fingerprint;
+        Session session = contentSource.newSession();
+        try {
+            fingerprint = CachedTransform.fingerprint(session, _tf
+                    .getModuleUri(), options.getOutputRecords());
+        } catch (XccException e) {
+            logger.logException("cannot fingerprint the process module "
+                    + _tf.getModuleUri() + ": ignoring " + RESULT_CACHE, e);
+            return;
+        } finally {
+            session.close();
+        }
+        long start = System.currentTimeMillis();
+        try {
+            resultCache = new ResultCache(new File(path), options
+                    .getResultCacheMaxBytes(), fingerprint);
+        } catch (IOException e) {
+            logger.logException("fatal error", e);
+            throw new RuntimeException(e);
+        }
+        logger.info("opened result cache " + path + " with "
+                + resultCache.size() + " uris in "
+                + (System.currentTimeMillis() - start) + " ms");
+        _tf.setResultCache(resultCache);
+    }
+
+    /**
+     * Load the uris to exclude, if there are any.
+     */
+    private void prepareExclusions() {
+        String path = options.getUrisExclude();
+        if (null == path) {
+            return;
+        }
+        String mode = options.getUrisExcludeMode();
+        logger.info("loading uris to exclude from " + path + ", as a "
+                + mode + " set");
+        long start = System.currentTimeMillis();
+        try {
+            UriFile file = new UriFile(new File(path));
+            if (TransformOptions.EXCLUDE_BLOOM.equals(mode)) {
+                BloomExclusionSet bloom = new BloomExclusionSet(file, options
+                        .getUrisExcludeFalsePositiveRate());
+                logger.info("bloom filter of " + bloom.getBitCount()
+                        + " bits, with " + bloom.getHashCount()
+                        + " hashes");
+                exclusions = bloom;
+            } else {
+                exclusions = new HashExclusionSet(file,
+                        TransformOptions.EXCLUDE_VERIFIED.equals(mode));
+            }
+            if (TransformOptions.EXCLUDE_VERIFIED.equals(mode)) {
+                // the set compares uris against the file
+                uriFiles.add(file);
+            } else {
+                file.close();
+            }
+        } catch (IOException e) {
+            logger.logException("fatal error", e);
+            throw new RuntimeException(e);
+        }
+        logger.info("loaded " + exclusions.size() + " uris to exclude in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * The monitor and statistics started out expecting every uri, so lower
+     * their counts by the uris that were excluded.
+     *
+     * @param _excluded
+     * @param _total
+     * @return false if there is nothing left to process
+     */
+    private boolean setExcludedCount(long _excluded, long _total) {
+        if (0 == _excluded) {
+            return true;
+        }
+        logger.info("excluded " + _excluded + "/" + _total);
+        long remaining = _total - _excluded;
+        expectedCount = remaining;
+        stats.setTaskCount(remaining);
+        monitor.setTaskCount(remaining);
+        if (0 == remaining) {
+            logger.info("nothing to process");
+            stop();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queue a task for a uri, or add it to the pending batch.
+     *
+     * @param _tf
+     * @param _uri
+     * @return false if the run is stopping
+     */
+    private boolean queueTask(TaskFactory _tf, String _uri) {
+        if (null == pendingBatch) {
+            return submit(_tf.newTask(_uri, outputSink));
+        }
+        pendingBatch[pendingCount++] = _uri;
+        if (pendingCount < pendingBatch.length) {
+            return true;
+        }
+        return flushBatch(_tf);
+    }
+
+    /**
+     * Queue the pending batch, if there is one.
+     *
+     * @param _tf
+     * @return false if the run is stopping
+     */
+    private boolean flushBatch(TaskFactory _tf) {
+        if (null == pendingBatch || 0 == pendingCount) {
+            return true;
+        }
+        String[] batch = pendingBatch;
+        int count = pendingCount;
+        pendingBatch = new String[batch.length];
+        pendingCount = 0;
+        return submit(_tf.newBatchTask(batch, count, outputSink));
+    }
+
+    /**
+     * Everything is queued: let the workers drain the queue and exit.
+     */
+    private void finishQueue() {
+        stats.startPhase(RunStatistics.PHASE_DRAIN);
+        IndexQueue q = indexQueue;
+        if (null != q) {
+            // the workers exit once the queue drains
+            q.close();
+        }
+        ExecutorService p = pool;
+        if (null != p) {
+            p.shutdown();
+        }
+    }
+
+    /**
+     * Start one long-lived worker per thread, for the indexed dispatch mode.
+     * The queue then holds only positions into the uri store.
+     *
+     * @param _tf
+     * @param _uris
+     */
+    private void startWorkers(TaskFactory _tf, UriIndex _uris) {
+        int threads = options.getThreadCount();
+        logger.info("using indexed dispatch: " + threads
+                + " workers, queue size " + options.getQueueSize());
+        IndexQueue q = new IndexQueue(options.getQueueSize());
+        indexQueue = q;
+        boolean batched = isBatched();
+        if (batched) {
+            logBatching();
+        }
+        for (int i = 0; i < threads; i++) {
+            if (!submit(batched ? _tf.newBatchWorker(q, _uris,
+                    getBatchSize(), outputSink) : _tf.newWorker(q, _uris,
+                    outputSink))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return uris per batch: for a bulk fetch, for a timestamp lookup, or
+     *         for an update transaction
+     */
+    private int getBatchSize() {
+        return null != localTransform || null != resultCache ? options
+                .getFetchBatchSize() : options.getUpdateBatchSize();
+    }
+
+    /**
+     * @return true if uris are processed in batches, not one at a time
+     */
+    private boolean isBatched() {
+        return null != localTransform || null != resultCache
+                || options.getUpdateBatchSize() > 1;
+    }
+
+    private void logBatching() {
+        if (null != localTransform) {
+            logger.info("fetching documents in batches of "
+                    + getBatchSize() + ", for "
+                    + localTransform.getClass().getName());
+        } else if (null != resultCache) {
+            logger.info("looking up document timestamps in batches of "
+                    + getBatchSize() + ", for the result cache");
+        } else {
+            logger.info("committing updates in batches of "
+                    + getBatchSize());
+        }
+    }
+
+    /**
+     * Load the local transform, if one is named, and start its pool.
+     *
+     * @param _tf
+     */
+    private void prepareLocalTransform(TaskFactory _tf) {
+        String name = options.getLocalTransform();
+        if (null == localTransform && null != name) {
+            try {
+                localTransform = (LocalTransform) Class.forName(name)
+                        .getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                logger.logException("fatal error", e);
+                throw new RuntimeException(e);
+            }
+        }
+        if (null == localTransform) {
+            return;
+        }
+        if (options.getUpdateBatchSize() > 1) {
+            logger.warning("a local transform does not update: ignoring "
+                    + UPDATE_BATCH_SIZE);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        logger.info("transforming documents locally with "
+                + localTransform.getClass().getName()
+                + ", on " + threads + " threads");
+        localPool = new ForkJoinPool(threads, stats
+                .newForkJoinWorkerThreadFactory(), null, false);
+        _tf.setLocalTransform(localTransform, localPool);
+    }
+
+    /**
+     * @param _position
+     * @return false if the run is stopping
+     */
+    private boolean dispatch(long _position) {
+        IndexQueue q = indexQueue;
+        if (null == q || null == pool) {
+            return false;
+        }
+        try {
+            return q.put(_position);
+        } catch (InterruptedException e) {
+            // the monitor stopped the run: fast-fail
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @param _task
+     * @return false if the task was rejected because the run is stopping
+     */
+    private boolean submit(Runnable _task) {
+        ExecutorService p = pool;
+        if (null == p) {
+            return false;
+        }
+        try {
+            p.execute(_task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (null == pool) {
+                // the monitor stopped the run: fast-fail
+                return false;
+            }
+            throw e;
+        }
+    }
+
     private void configureLogger() {
         if (logger == null) {
             logger = SimpleLogger.getSimpleLogger();
@@ -587,15 +1576,185 @@ public class Manager implements Runnable {
         logger.configureLogger(props);
     }
 
-    private void configureOutputLogger() {
-        if (outputLogger == null) {
-            outputLogger = SimpleLogger.getSimpleLogger("output");
+    private void configureOutput() {
+        if (null != resultSink) {
+            logger.info("sending results to " + resultSink);
+            outputSink = new ResultSinkOutput(resultSink);
+            return;
+        }
+        String pattern = options.getOutputLogFileNameFormat();
+        File file = null;
+        boolean perItem = TransformOptions.OUTPUT_RECORDS_ITEM.equals(options
+                .getOutputRecords());
+        if (options.isOutputRolling()
+                && !TransformOptions.OUTPUT_FORMAT_TEXT.equals(options
+                        .getOutputFormat())) {
+            logger.warning("only text output rolls: ignoring "
+                    + OUTPUT_ROLL_BYTES + " and " + OUTPUT_ROLL_RECORDS);
+        }
+        if (options.isOutputSorted()
+                && !TransformOptions.OUTPUT_FORMAT_TEXT.equals(options
+                        .getOutputFormat())) {
+            logger.warning("only text output sorts: ignoring " + OUTPUT_SORT);
+        }
+        if (options.isOutputAggregated()
+                && !TransformOptions.OUTPUT_FORMAT_TEXT.equals(options
+                        .getOutputFormat())) {
+            logger.warning("only text output aggregates: ignoring "
+                    + OUTPUT_AGGREGATE);
+        }
+        try {
+            if (!TransformOptions.OUTPUT_FORMAT_FILES.equals(options
+                    .getOutputFormat())
+                    && !TransformOptions.OUTPUT_FORMAT_PARTITIONED
+                            .equals(options.getOutputFormat())) {
+                // a concurrent run with the same pattern gets another %u
+                outputLock = OutputLock.claim(pattern);
+                pattern = outputLock.getPattern();
+                file = TextOutputSink.resolve(pattern);
+            }
+            if (TransformOptions.OUTPUT_FORMAT_FILES.equals(options
+                    .getOutputFormat())) {
+                File dir = new File(options.getOutputDirectory());
+                logger.info("writing a file per uri to " + dir
+                        + ", at most " + options.getOutputMaxWrites()
+                        + " writes in flight");
+                outputSink = new FilePerDocumentSink(dir, options
+                        .getOutputMaxWrites());
+            } else if (TransformOptions.OUTPUT_FORMAT_PARTITIONED
+                    .equals(options.getOutputFormat())) {
+                File dir = new File(options.getOutputDirectory());
+                logger.info("writing a file per partition key to " + dir
+                        + ", at most " + options.getOutputMaxOpen()
+                        + " open at once");
+                outputSink = new PartitionedOutputSink(dir, options
+                        .getOutputMaxOpen());
+            } else if (TransformOptions.OUTPUT_FORMAT_RAW.equals(options
+                    .getOutputFormat())) {
+                boolean delimited = TransformOptions.OUTPUT_FRAMING_DELIMITER
+                        .equals(options.getOutputFraming());
+                logger.info("writing raw output to " + file + ", framed by "
+                        + (delimited ? "delimiter" : "length"));
+                RawOutputSink sink = new RawOutputSink(file,
+                        delimited ? RawOutputSink.parseDelimiter(options
+                                .getOutputDelimiter()) : null);
+                sink.setRecordPerItem(perItem);
+                outputSink = sink;
+            } else if (options.isOutputAggregated()) {
+                if (options.isOutputSorted() || options.isOutputRolling()) {
+                    logger.warning("aggregated output is sorted by key"
+                            + " and does not roll: ignoring " + OUTPUT_SORT
+                            + ", " + OUTPUT_ROLL_BYTES + " and "
+                            + OUTPUT_ROLL_RECORDS);
+                }
+                logger.info("writing the " + options.getOutputAggregate()
+                        + " per key to " + file);
+                outputSink = new AggregatingOutputSink(file, options
+                        .getOutputAggregate());
+            } else if (options.isOutputSorted()) {
+                if (options.isOutputRolling()) {
+                    logger.warning("sorted output does not roll: ignoring "
+                            + OUTPUT_ROLL_BYTES + " and "
+                            + OUTPUT_ROLL_RECORDS);
+                }
+                File tmp = null == options.getOutputSortDirectory() ? null
+                        : new File(options.getOutputSortDirectory());
+                logger.info("writing output to " + file + ", sorted by "
+                        + options.getOutputSort() + " in "
+                        + options.getOutputSortMemory() + " bytes of memory");
+                outputSink = new SortingOutputSink(file, options
+                        .getOutputSort(), options.getOutputSortMemory(), tmp);
+            } else if (options.isOutputRolling()) {
+                File manifest = null == options.getOutputManifest() ? RollingOutputStream
+                        .getManifestFile(pattern)
+                        : new File(options.getOutputManifest());
+                logger.info("writing output to "
+                        + RollingOutputStream.getPartFile(pattern, 0)
+                        + ", rolling at " + options.getOutputRollBytes()
+                        + " bytes or " + options.getOutputRollRecords()
+                        + " records, with manifest " + manifest);
+                TextOutputSink sink = new TextOutputSink(pattern, options
+                        .getOutputRollBytes(), options
+                        .getOutputRollRecords(), manifest);
+                sink.setRecordPerItem(perItem);
+                outputSink = sink;
+            } else {
+                logger.info("writing output to " + file);
+                TextOutputSink sink = new TextOutputSink(pattern);
+                sink.setRecordPerItem(perItem);
+                outputSink = sink;
+            }
+        } catch (IOException e) {
+            logger.logException("fatal error", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return false if the output is incomplete
+     */
+    private boolean closeOutput() {
+        try {
+            if (!isRunFinished() && outputSink instanceof TextOutputSink) {
+                ((TextOutputSink) outputSink).abort();
+            }
+            outputSink.close();
+            return true;
+        } catch (IOException e) {
+            logger.logException("output is incomplete", e);
+            return false;
+        } finally {
+            releaseOutputLock();
+        }
+    }
+
+    private void releaseOutputLock() {
+        if (null == outputLock) {
+            return;
+        }
+        try {
+            outputLock.release();
+        } catch (IOException e) {
+            logger.logException("could not release the output lock", e);
+        }
+    }
+
+    /**
+     * @return true if the run was not stopped, and every uri that it
+     *         queued completed or failed
+     */
+    private boolean isRunFinished() {
+        return null == fatalError
+                && expectedCount >= 0
+                && getCompletedCount() + getFailedCount() == expectedCount;
+    }
+
+    /**
+     * Advance the watermark, but only if every uri completed.
+     *
+     * @param _outputComplete
+     */
+    private void saveWatermark(boolean _outputComplete) {
+        if (null == watermark || null == watermark.getStart()) {
+            return;
+        }
+        long completed = null == completionTracker ? 0 : completionTracker
+                .getCompletedCount();
+        long failed = null == completionTracker ? 0 : completionTracker
+                .getFailedCount();
+        if (!_outputComplete || failed > 0 || expectedCount < 0
+                || completed != expectedCount) {
+            logger.warning("run is incomplete: keeping the watermark in "
+                    + watermark.getFile());
+            return;
+        }
+        try {
+            watermark.save();
+            logger.info("saved watermark " + watermark.getStart() + " to "
+                    + watermark.getFile());
+        } catch (IOException e) {
+            logger.logException("could not save the watermark", e);
         }
-        Properties props = new Properties();
-        props.setProperty("LOG_HANDLER", "FILE");
-        props.setProperty("LOG_FILEHANDLER_PATH", options.getOutputLogFileNameFormat());
-        props.setProperty("LOG_FORMATTER", "BareText");
-        outputLogger.configureLogger(props);
     }
 
     /**
@@ -603,13 +1762,20 @@ public class Manager implements Runnable {
      */
     public void stop() {
         logger.info("cleaning up");
-        if (null != pool) {
-            List<Runnable> remaining = pool.shutdownNow();
+        // clear the field first, so the producer knows why it was rejected
+        ExecutorService p = pool;
+        pool = null;
+        IndexQueue q = indexQueue;
+        if (null != q) {
+            // release the producer and any idle workers
+            q.abort();
+        }
+        if (null != p) {
+            List<Runnable> remaining = p.shutdownNow();
             if (remaining != null && remaining.size() > 0) {
                 logger.warning("thread pool was shut down with "
                         + remaining.size() + " pending tasks");
             }
-            pool = null;
         }
         if (null != monitor) {
             monitor.shutdownNow();
@@ -623,7 +1789,18 @@ public class Manager implements Runnable {
      * @param e
      */
     public void stop(ExecutionException e) {
-        logger.logException("fatal error", e.getCause());
+        Throwable cause = e.getCause();
+        if (cause instanceof XQueryException
+                && "XDMP-UPDATEPIT".equals(((XQueryException) cause)
+                        .getCode())) {
+            // say which option to change
+            cause = new IllegalStateException("the process module updates,"
+                    + " so it cannot run at a point in time: make it"
+                    + " read-only, or set " + POINT_IN_TIME + "="
+                    + TransformOptions.POINT_IN_TIME_NONE, cause);
+        }
+        fatalError = cause;
+        logger.logException("fatal error", cause);
         logger.warning("exiting due to fatal error");
         stop();
     }
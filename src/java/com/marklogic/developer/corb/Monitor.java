@@ -18,10 +18,8 @@
  */
 package com.marklogic.developer.corb;
 
-import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import com.marklogic.developer.SimpleLogger;
@@ -34,9 +32,12 @@ public class Monitor implements Runnable {
 
     protected static final int SLEEP_MILLIS = 500;
 
+    /** the task count until the producer has seen every uri */
+    public static final long UNKNOWN_TASK_COUNT = Long.MAX_VALUE;
+
     private SimpleLogger logger;
 
-    private CompletionService<String> cs;
+    private CompletionTracker tracker;
 
     private long lastProgress = 0;
 
@@ -44,25 +45,26 @@ public class Monitor implements Runnable {
 
     private Manager manager;
 
-    private String lastUri;
-
-    private long taskCount;
+    /**
+     * set once the uris are all queued, if they were not counted first, and
+     * lowered if some were excluded
+     */
+    private volatile long taskCount;
 
-    private ThreadPoolExecutor pool;
+    private ExecutorService pool;
 
     private boolean shutdownNow = false;
 
     /**
      * @param _pool
-     * @param _cs
+     * @param _tracker
      * @param _manager
      * @param _logger
      */
-    public Monitor(ThreadPoolExecutor _pool,
-            CompletionService<String> _cs, Manager _manager,
-            SimpleLogger _logger) {
+    public Monitor(ExecutorService _pool, CompletionTracker _tracker,
+            Manager _manager, SimpleLogger _logger) {
         pool = _pool;
-        cs = _cs;
+        tracker = _tracker;
         manager = _manager;
         logger = _logger;
     }
@@ -91,27 +93,21 @@ public class Monitor implements Runnable {
     private void monitorResults() throws InterruptedException,
             ExecutionException {
         // fast-fail as soon as we see any exceptions
-        logger.info("monitoring " + taskCount + " tasks");
-        Future<String> future = null;
+        logger.info("monitoring " + getTaskCountMessage() + " tasks");
         while (!shutdownNow) {
-            // try to avoid thread starvation
-            Thread.yield();
-
-            future = cs.poll(TransformOptions.PROGRESS_INTERVAL_MS,
+            Throwable error = tracker.awaitError(SLEEP_MILLIS,
                     TimeUnit.MILLISECONDS);
-            if (null != future) {
-                // record result, or throw exception
-                lastUri = future.get();
-                logger.fine("uri: " + lastUri);
-                showProgress();
+            if (null != error) {
+                throw new ExecutionException(error);
             }
+            showProgress();
 
-            if (pool.getCompletedTaskCount() == taskCount) {
+            if (getCompletedTaskCount() == taskCount) {
                 break;
             }
-            if (pool.getCompletedTaskCount() > taskCount) {
+            if (getCompletedTaskCount() > taskCount) {
                 logger.warning("expected " + taskCount + " tasks, got "
-                        + pool.getCompletedTaskCount());
+                        + getCompletedTaskCount());
                 logger.warning("check your uri module!");
                 manager.stop();
                 return;
@@ -146,12 +142,24 @@ public class Monitor implements Runnable {
         taskCount = _count;
     }
 
+    /**
+     * @return
+     */
+    public long getCompletedTaskCount() {
+        return tracker.getCompletedCount();
+    }
+
     private String getProgressMessage() {
-        long completed = pool.getCompletedTaskCount();
+        long completed = getCompletedTaskCount();
         int tps = (int) ((double) completed * (double) 1000 / (System
                 .currentTimeMillis() - startMillis));
-        return completed + "/" + taskCount + ", " + tps + " tps, "
-                + pool.getActiveCount() + " active threads";
+        return completed + "/" + getTaskCountMessage() + ", " + tps + " tps, "
+                + tracker.getActiveCount() + " active threads";
+    }
+
+    private String getTaskCountMessage() {
+        long count = taskCount;
+        return UNKNOWN_TASK_COUNT == count ? "?" : Long.toString(count);
     }
 
     /**
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Claims the %u token of an output pattern, as java.util.logging.FileHandler
+ * does: %u is the lowest number whose lock file no other writer holds, so
+ * concurrent runs with the same pattern write to different files, and a
+ * run on its own gets 0. The lock file is the first output file with a .lck
+ * suffix, and is removed on release. A pattern without %u takes no lock.
+ */
+public class OutputLock {
+
+    /** like FileHandler, give up after this many */
+    public static final int MAX_UNIQUE = 100;
+
+    private String pattern;
+
+    private File file;
+
+    private FileChannel channel;
+
+    private FileLock lock;
+
+    private OutputLock(String _pattern) {
+        pattern = _pattern;
+    }
+
+    /**
+     * @param _pattern
+     * @return the lock, holding the pattern with %u replaced
+     * @throws IOException
+     *             if every %u up to {@link #MAX_UNIQUE} is taken
+     */
+    public static OutputLock claim(String _pattern) throws IOException {
+        if (!hasUnique(_pattern)) {
+            return new OutputLock(_pattern);
+        }
+        for (int unique = 0; unique < MAX_UNIQUE; unique++) {
+            OutputLock claimed = new OutputLock(replaceUnique(_pattern,
+                    unique));
+            if (claimed.tryLock()) {
+                return claimed;
+            }
+        }
+        throw new IOException("every %u up to " + MAX_UNIQUE
+                + " is locked for " + _pattern);
+    }
+
+    /**
+     * @return the pattern, with %u replaced by the number claimed
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Release the lock, and remove its file.
+     *
+     * @throws IOException
+     */
+    public void release() throws IOException {
+        if (null == channel) {
+            return;
+        }
+        try {
+            lock.release();
+        } finally {
+            channel.close();
+            channel = null;
+            file.delete();
+        }
+    }
+
+    private boolean tryLock() throws IOException {
+        file = new File(TextOutputSink.resolve(pattern).getPath() + ".lck");
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by this process
+            lock = null;
+        }
+        if (null == lock) {
+            channel.close();
+            channel = null;
+        }
+        return null != lock;
+    }
+
+    private static boolean hasUnique(String _pattern) {
+        for (int i = 0; i < _pattern.length() - 1; i++) {
+            if ('%' == _pattern.charAt(i)) {
+                if ('u' == _pattern.charAt(i + 1)) {
+                    return true;
+                }
+                // skip the token
+                i++;
+            }
+        }
+        return false;
+    }
+
+    private static String replaceUnique(String _pattern, int _unique) {
+        StringBuilder sb = new StringBuilder(_pattern.length() + 8);
+        for (int i = 0; i < _pattern.length(); i++) {
+            char c = _pattern.charAt(i);
+            if ('%' != c || i + 1 == _pattern.length()) {
+                sb.append(c);
+                continue;
+            }
+            char token = _pattern.charAt(++i);
+            if ('u' == token) {
+                sb.append(_unique);
+            } else {
+                // the other tokens are resolved later
+                sb.append(c).append(token);
+            }
+        }
+        return sb.toString();
+    }
+
+}
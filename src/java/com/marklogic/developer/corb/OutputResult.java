@@ -0,0 +1,42 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.IOException;
+
+/**
+ * The result for one uri, as the output sees it: a sequence of items, read
+ * once, in order. Results from the server may be streaming, so an item
+ * should be read before the next one is taken.
+ */
+public interface OutputResult {
+
+    /**
+     * @return true if there is another item
+     * @throws IOException
+     */
+    boolean hasNext() throws IOException;
+
+    /**
+     * @return the next item
+     * @throws IOException
+     */
+    OutputItem next() throws IOException;
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.IOException;
+
+/**
+ * Where process module results go. The worker threads call
+ * {@link #write(String, OutputResult)} concurrently, so implementations
+ * must be thread-safe, and must keep each result together.
+ */
+public interface OutputSink {
+
+    /**
+     * Write the result for one uri. The result may be streaming, so it can
+     * only be read once, in order.
+     *
+     * @param _uri
+     * @param _result
+     * @return the size of the result, in characters or bytes
+     * @throws IOException
+     */
+    long write(String _uri, OutputResult _result) throws IOException;
+
+    /**
+     * Flush and release the output. No more results will be written.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+}
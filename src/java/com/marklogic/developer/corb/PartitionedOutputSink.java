@@ -0,0 +1,317 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Routes each line of output to a file named for its partition key. The
+ * process module returns lines of the form key TAB payload, and the payload
+ * is appended to the key's file, in the platform encoding. The end of each
+ * item also ends a line.
+ *
+ * To stay within file descriptor limits, at most maxOpen files are open at
+ * once: the least recently used one is closed to make room, and reopened in
+ * append mode if its key comes back.
+ *
+ * Each result's lines are collected in a buffer, and routed under a single
+ * lock acquisition, so the lines of one result stay in order. A result that
+ * fails part way through may leave some of its lines behind.
+ */
+public class PartitionedOutputSink implements OutputSink {
+
+    public static final char KEY_SEPARATOR = '\t';
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char NEWLINE = '\n';
+
+    private File directory;
+
+    private Charset charset;
+
+    private int maxOpen;
+
+    private boolean closed = false;
+
+    private ReentrantLock lock = new ReentrantLock();
+
+    /** in access order, so the first entry is the least recently used */
+    private LinkedHashMap<String, Writer> writers = new LinkedHashMap<String, Writer>(
+            16, 0.75f, true);
+
+    private ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+
+    /**
+     * @param _directory
+     * @param _maxOpen
+     *            the most files to keep open at once
+     * @throws IOException
+     */
+    public PartitionedOutputSink(File _directory, int _maxOpen)
+            throws IOException {
+        if (_maxOpen < 1) {
+            throw new IllegalArgumentException(
+                    "open files must be positive: " + _maxOpen);
+        }
+        if (!_directory.isDirectory() && !_directory.mkdirs()) {
+            throw new IOException("cannot create directory " + _directory);
+        }
+        directory = _directory;
+        maxOpen = _maxOpen;
+        charset = Charset.defaultCharset();
+    }
+
+    /**
+     * @param _key
+     * @return the file for a partition key
+     */
+    public File getFile(String _key) {
+        return new File(directory, FilePerDocumentSink.encode(_key));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.marklogic.developer.corb.OutputSink#write(java.lang.String,
+     * com.marklogic.developer.corb.OutputResult)
+     */
+    public long write(String _uri, OutputResult _result)
+            throws IOException {
+        Buffer b = buffers.poll();
+        if (null == b) {
+            b = new Buffer();
+        }
+        try {
+            long size = 0;
+            while (_result.hasNext()) {
+                Reader r = _result.next().asReader();
+                try {
+                    size += b.append(_uri, r);
+                } finally {
+                    r.close();
+                }
+            }
+            b.flush(_uri, b.length);
+            return size;
+        } finally {
+            b.length = 0;
+            buffers.offer(b);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.OutputSink#close()
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            IOException error = null;
+            for (Writer w : writers.values()) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    if (null == error) {
+                        error = e;
+                    }
+                }
+            }
+            writers.clear();
+            if (null != error) {
+                throw error;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Call with the lock held.
+     *
+     * @param _key
+     * @return
+     * @throws IOException
+     */
+    private Writer getWriter(String _key) throws IOException {
+        Writer w = writers.get(_key);
+        if (null != w) {
+            return w;
+        }
+        if (writers.size() >= maxOpen) {
+            Iterator<Map.Entry<String, Writer>> eldest = writers.entrySet()
+                    .iterator();
+            Writer evicted = eldest.next().getValue();
+            eldest.remove();
+            evicted.close();
+        }
+        w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                getFile(_key), true), charset));
+        writers.put(_key, w);
+        return w;
+    }
+
+    /**
+     * Lines from one result, waiting to be routed.
+     */
+    private class Buffer {
+
+        private char[] chars = new char[BUFFER_SIZE];
+
+        private int length = 0;
+
+        /** the last key routed, so that runs of one key skip the lookup */
+        private String key;
+
+        private Writer writer;
+
+        long append(String _uri, Reader _reader) throws IOException {
+            long size = 0;
+            int n;
+            while (true) {
+                if (length == chars.length) {
+                    int end = lastLineEnd();
+                    if (end < 0) {
+                        // one very long line
+                        grow();
+                    } else {
+                        flush(_uri, end);
+                    }
+                }
+                n = _reader.read(chars, length, chars.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+                size += n;
+            }
+            // the end of an item ends a line
+            if (length > 0 && NEWLINE != chars[length - 1]) {
+                if (length == chars.length) {
+                    grow();
+                }
+                chars[length++] = NEWLINE;
+            }
+            return size;
+        }
+
+        private int lastLineEnd() {
+            for (int i = length - 1; i >= 0; i--) {
+                if (NEWLINE == chars[i]) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private void grow() {
+            char[] bigger = new char[2 * chars.length];
+            System.arraycopy(chars, 0, bigger, 0, length);
+            chars = bigger;
+        }
+
+        /**
+         * Route the complete lines before _end, and keep the rest.
+         *
+         * @param _uri
+         * @param _end
+         * @throws IOException
+         */
+        void flush(String _uri, int _end) throws IOException {
+            if (0 == _end) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("output is closed");
+                }
+                int start = 0;
+                while (start < _end) {
+                    int eol = start;
+                    while (NEWLINE != chars[eol]) {
+                        eol++;
+                    }
+                    if (eol > start) {
+                        route(_uri, start, eol);
+                    }
+                    start = eol + 1;
+                }
+            } finally {
+                key = null;
+                writer = null;
+                lock.unlock();
+            }
+            System.arraycopy(chars, _end, chars, 0, length - _end);
+            length -= _end;
+        }
+
+        private void route(String _uri, int _start, int _end)
+                throws IOException {
+            // like AggregatingOutputSink, accept CRLF line ends
+            if (_end > _start && '\r' == chars[_end - 1]) {
+                _end--;
+            }
+            int tab = _start;
+            while (tab < _end && KEY_SEPARATOR != chars[tab]) {
+                tab++;
+            }
+            if (tab == _end || tab == _start) {
+                throw new IOException("no partition key in output for "
+                        + _uri);
+            }
+            int keyLength = tab - _start;
+            if (null == key || key.length() != keyLength
+                    || !sameKey(_start, keyLength)) {
+                key = new String(chars, _start, keyLength);
+                writer = getWriter(key);
+            }
+            writer.write(chars, tab + 1, _end - tab - 1);
+            writer.write(NEWLINE);
+        }
+
+        private boolean sameKey(int _start, int _length) {
+            for (int i = 0; i < _length; i++) {
+                if (key.charAt(i) != chars[_start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
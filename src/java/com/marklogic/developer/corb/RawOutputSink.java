@@ -0,0 +1,361 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Copies result bytes from XCC straight to a file channel, through a direct
+ * buffer, with no charset decoding or encoding. Each record is framed either
+ * by an 8-byte big-endian length prefix, or by a delimiter that follows it.
+ * In document mode the items of a result are written back to back, as one
+ * record.
+ *
+ * Like {@link TextOutputSink}, a record that fits in the buffer is written
+ * in one piece, and a larger record holds the file lock while it streams.
+ * The length of a large record is patched into its prefix once it is
+ * complete. If a record fails part way through, the file is truncated to
+ * remove it.
+ */
+public class RawOutputSink implements OutputSink {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int LENGTH_BYTES = 8;
+
+    private FileChannel channel;
+
+    /** null for length framing */
+    private byte[] delimiter;
+
+    private boolean recordPerItem = false;
+
+    private boolean closed = false;
+
+    private ReentrantLock lock = new ReentrantLock();
+
+    private ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+
+    /**
+     * Append to a file. Positional writes are needed to patch the length
+     * prefixes, so the channel is not opened in append mode: this sink
+     * starts at the end of the file, and keeps track of the position.
+     *
+     * @param _file
+     * @param _delimiter
+     *            the delimiter to write after each record, or null to
+     *            prefix each record with its length
+     * @throws IOException
+     */
+    public RawOutputSink(File _file, byte[] _delimiter) throws IOException {
+        channel = new RandomAccessFile(_file, "rw").getChannel();
+        channel.position(channel.size());
+        delimiter = _delimiter;
+    }
+
+    /**
+     * @param _perItem
+     *            if true, each item of a result is a separate record, and
+     *            an empty result writes nothing
+     */
+    public void setRecordPerItem(boolean _perItem) {
+        recordPerItem = _perItem;
+    }
+
+    /**
+     * Decode a delimiter, allowing the escapes \n, \r, \t, \0 and \\.
+     *
+     * @param _delimiter
+     * @return the delimiter as UTF-8 bytes
+     */
+    public static byte[] parseDelimiter(String _delimiter) {
+        StringBuilder sb = new StringBuilder(_delimiter.length());
+        for (int i = 0; i < _delimiter.length(); i++) {
+            char c = _delimiter.charAt(i);
+            if ('\\' != c || i + 1 == _delimiter.length()) {
+                sb.append(c);
+                continue;
+            }
+            char e = _delimiter.charAt(++i);
+            switch (e) {
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case '0':
+                sb.append('\0');
+                break;
+            case '\\':
+                sb.append('\\');
+                break;
+            default:
+                sb.append(c).append(e);
+            }
+        }
+        if (0 == sb.length()) {
+            throw new IllegalArgumentException("empty delimiter");
+        }
+        try {
+            return sb.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.marklogic.developer.corb.OutputSink#write(java.lang.String,
+     * com.marklogic.developer.corb.OutputResult)
+     */
+    public long write(String _uri, OutputResult _result)
+            throws IOException {
+        Buffer b = buffers.poll();
+        if (null == b) {
+            b = new Buffer();
+        }
+        Throwable failure = null;
+        try {
+            long size = 0;
+            boolean open = false;
+            while (_result.hasNext()) {
+                OutputItem item = _result.next();
+                if (!open) {
+                    b.beginRecord();
+                    open = true;
+                }
+                size += b.append(item);
+                if (recordPerItem) {
+                    b.endRecord();
+                    open = false;
+                }
+            }
+            if (!recordPerItem) {
+                if (!open) {
+                    b.beginRecord();
+                }
+                b.endRecord();
+            }
+            return size;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            try {
+                b.release(null == failure);
+            } catch (IOException e) {
+                // the write failure is the one to report
+                if (null == failure) {
+                    throw e;
+                }
+                failure.addSuppressed(e);
+            } finally {
+                buffers.offer(b);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.OutputSink#close()
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void lockOutput() throws IOException {
+        lock.lock();
+        if (closed) {
+            lock.unlock();
+            throw new IOException("output is closed");
+        }
+    }
+
+    private void writeFully(ByteBuffer _buffer) throws IOException {
+        while (_buffer.hasRemaining()) {
+            channel.write(_buffer);
+        }
+    }
+
+    /**
+     * The bytes of one record. Until the record outgrows the buffer, nothing
+     * reaches the file.
+     */
+    private class Buffer {
+
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private ByteBuffer prefix = ByteBuffer.allocateDirect(LENGTH_BYTES);
+
+        private byte[] chunk = new byte[8 * 1024];
+
+        private boolean locked = false;
+
+        /** where the record starts in the file, while locked */
+        private long recordStart;
+
+        private boolean spilled = false;
+
+        private long recordLength;
+
+        void beginRecord() {
+            buffer.clear();
+            recordLength = 0;
+            if (null == delimiter) {
+                // placeholder, until the length is known
+                buffer.putLong(0);
+            }
+        }
+
+        long append(OutputItem _item) throws IOException {
+            long size = 0;
+            InputStream in = _item.asInputStream();
+            try {
+                int n;
+                while ((n = in.read(chunk)) > -1) {
+                    put(chunk, n);
+                    size += n;
+                }
+            } finally {
+                in.close();
+            }
+            recordLength += size;
+            return size;
+        }
+
+        void endRecord() throws IOException {
+            if (null != delimiter) {
+                put(delimiter, delimiter.length);
+            } else if (!locked) {
+                buffer.putLong(0, recordLength);
+            }
+            if (!locked) {
+                lockRecord();
+            }
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+            if (null == delimiter && spilled) {
+                writePrefix();
+            }
+            unlockRecord();
+        }
+
+        /**
+         * Patch the length of a record that spilled.
+         *
+         * @throws IOException
+         */
+        private void writePrefix() throws IOException {
+            prefix.clear();
+            prefix.putLong(0, recordLength);
+            long position = recordStart;
+            while (prefix.hasRemaining()) {
+                position += channel.write(prefix, position);
+            }
+        }
+
+        private void put(byte[] _bytes, int _length) throws IOException {
+            int offset = 0;
+            while (offset < _length) {
+                if (!buffer.hasRemaining()) {
+                    spill();
+                }
+                int n = Math.min(buffer.remaining(), _length - offset);
+                buffer.put(_bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        /**
+         * The record is too big to buffer: stream the rest under the lock.
+         *
+         * @throws IOException
+         */
+        private void spill() throws IOException {
+            if (!locked) {
+                lockRecord();
+            }
+            spilled = true;
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void lockRecord() throws IOException {
+            lockOutput();
+            locked = true;
+            recordStart = channel.position();
+        }
+
+        private void unlockRecord() {
+            spilled = false;
+            locked = false;
+            lock.unlock();
+        }
+
+        /**
+         * Unlock the output, after removing the partial record if the write
+         * failed. The output is unlocked even if that fails.
+         *
+         * @param _ok
+         * @throws IOException
+         */
+        void release(boolean _ok) throws IOException {
+            if (!locked) {
+                return;
+            }
+            try {
+                if (!_ok) {
+                    // remove the partial record
+                    channel.truncate(recordStart);
+                    channel.position(recordStart);
+                }
+            } finally {
+                unlockRecord();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,636 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.marklogic.developer.SimpleLogger;
+
+/**
+ * A persistent cache of process module output, keyed by uri and document
+ * timestamp, for exports whose output depends only on the document. An
+ * unchanged document is served from the cache, without a request.
+ *
+ * The cache is an append-only log of records: length, CRC, timestamp, uri,
+ * and the result items as text. The log starts with a fingerprint of what
+ * produced the results, such as the process module's source: a cache with
+ * a different fingerprint is discarded as it opens, since none of its
+ * results can be trusted. A newer record for a uri replaces the
+ * older one, which becomes garbage. The index is kept in memory as an
+ * open-addressing table of 64-bit uri hashes and log offsets, about 21
+ * bytes per uri. Uris with the same hash take separate slots, and a lookup
+ * confirms the uri against each record with that hash.
+ *
+ * A torn record at the end of the log, from a crash, is cut off when the
+ * cache is opened. When more than half the log is garbage, it is compacted
+ * as the cache opens and closes: the live records are copied to a new log,
+ * which replaces the old one by a rename. A log that reaches its size limit
+ * is compacted too, if a quarter of the limit is garbage. New records are
+ * not added once the live records fill the limit.
+ */
+public class ResultCache {
+
+    private static final int HEADER = 8;
+
+    /** starts the log, before the fingerprint */
+    private static final int MAGIC = 0x636f7262;
+
+    private static final double LOAD_FACTOR = 0.75;
+
+    /** compact when the log is more than this many times the live data */
+    private static final int GARBAGE_RATIO = 2;
+
+    /**
+     * compact a full log when this fraction of the size limit is garbage, so
+     * each compaction frees enough for the copying to pay
+     */
+    private static final int FULL_GARBAGE_DIVISOR = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static SimpleLogger logger = SimpleLogger.getSimpleLogger();
+
+    private File file;
+
+    private long maxBytes;
+
+    private String fingerprint;
+
+    /** the magic number and fingerprint that start the log */
+    private byte[] logHeader;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    /** the end of the log */
+    private long length;
+
+    private long liveBytes;
+
+    private long[] hashes;
+
+    private long[] offsets;
+
+    private int size;
+
+    private boolean full = false;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * @param _file
+     * @param _maxBytes
+     *            the most the log may grow to, or 0 for no limit
+     * @param _fingerprint
+     *            describes everything but the document that the results
+     *            depend on
+     * @throws IOException
+     */
+    public ResultCache(File _file, long _maxBytes, String _fingerprint)
+            throws IOException {
+        file = _file;
+        maxBytes = _maxBytes;
+        fingerprint = _fingerprint;
+        byte[] bytes = _fingerprint.getBytes(UTF8);
+        ByteBuffer b = ByteBuffer.allocate(8 + bytes.length);
+        b.putInt(MAGIC);
+        b.putInt(bytes.length);
+        b.put(bytes);
+        logHeader = b.array();
+        open();
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    /**
+     * @return the number of uris in the cache
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param _uri
+     * @param _timestamp
+     * @return the cached items, or null if the uri is not cached at this
+     *         timestamp
+     * @throws IOException
+     */
+    public String[] get(String _uri, long _timestamp) throws IOException {
+        long[] candidates;
+        FileChannel log;
+        synchronized (this) {
+            candidates = candidates(hash(_uri));
+            log = channel;
+        }
+        // a record never changes once written, so read it without the lock
+        String[] items = null;
+        try {
+            for (long offset : candidates) {
+                Record r = read(log, offset);
+                if (null != r && _uri.equals(r.uri)) {
+                    if (r.timestamp == _timestamp) {
+                        items = r.items;
+                    }
+                    break;
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // compacted meanwhile: the offsets belong to the old log
+            items = null;
+        }
+        synchronized (this) {
+            if (null == items) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Start a record, to be filled as the result is written, and added by
+     * {@link #put(Entry)}.
+     *
+     * @param _uri
+     * @param _timestamp
+     * @return
+     */
+    public Entry newEntry(String _uri, long _timestamp) {
+        return new Entry(_uri, _timestamp, maxBytes);
+    }
+
+    /**
+     * @param _entry
+     * @throws IOException
+     */
+    public synchronized void put(Entry _entry) throws IOException {
+        ByteBuffer record = _entry.finish();
+        if (null == record) {
+            // larger than the whole cache
+            setFull();
+            return;
+        }
+        if (maxBytes > 0 && length + record.remaining() > maxBytes) {
+            if (length - liveBytes >= maxBytes / FULL_GARBAGE_DIVISOR) {
+                compact();
+            }
+            if (length + record.remaining() > maxBytes) {
+                setFull();
+                return;
+            }
+        }
+        long offset = length;
+        length += writeFully(channel, record, length);
+        index(_entry.uri, offset, length - offset);
+    }
+
+    /**
+     * @return true if a record was left out because of the size limit
+     */
+    public synchronized boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Compact the log if it needs it, and close it.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (null == channel) {
+            return;
+        }
+        if (needsCompaction()) {
+            compact();
+        }
+        channel.force(false);
+        raf.close();
+        channel = null;
+    }
+
+    private void setFull() {
+        if (!full) {
+            full = true;
+            logger.warning("result cache " + file + " reached " + maxBytes
+                    + " bytes: new results will not be cached");
+        }
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        hashes = new long[16];
+        offsets = new long[16];
+        size = 0;
+        liveBytes = 0;
+        long end = channel.size();
+        if (!hasLogHeader(end)) {
+            if (end > 0) {
+                logger.warning("result cache " + file
+                        + " has results from another process module or"
+                        + " options: discarding it");
+                channel.truncate(0);
+            }
+            writeFully(channel, ByteBuffer.wrap(logHeader), 0);
+            end = logHeader.length;
+        }
+        length = logHeader.length;
+        while (length < end) {
+            Record r;
+            try {
+                r = read(channel, length);
+            } catch (EOFException e) {
+                r = null;
+            }
+            if (null == r) {
+                // torn by a crash: drop the rest
+                channel.truncate(length);
+                break;
+            }
+            index(r.uri, length, r.size);
+            length += r.size;
+        }
+    }
+
+    /**
+     * @param _end
+     *            the length of the log
+     * @return true if the log starts with this cache's fingerprint
+     * @throws IOException
+     */
+    private boolean hasLogHeader(long _end) throws IOException {
+        if (_end < logHeader.length) {
+            return false;
+        }
+        ByteBuffer b = ByteBuffer.allocate(logHeader.length);
+        readFully(channel, b, 0);
+        return Arrays.equals(logHeader, b.array());
+    }
+
+    private boolean needsCompaction() {
+        return length > 1024 * 1024 && length > GARBAGE_RATIO * liveBytes;
+    }
+
+    /**
+     * Copy the live records to a new log, and switch to it.
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            FileChannel target = out.getChannel();
+            writeFully(target, ByteBuffer.wrap(logHeader), 0);
+            // the records follow, by position
+            target.position(logHeader.length);
+            for (int i = 0; i < offsets.length; i++) {
+                if (0 == hashes[i]) {
+                    continue;
+                }
+                long recordLength = HEADER + readInt(offsets[i]);
+                long copied = 0;
+                while (copied < recordLength) {
+                    copied += channel.transferTo(offsets[i] + copied,
+                            recordLength - copied, target);
+                }
+            }
+            target.force(false);
+        } finally {
+            out.close();
+        }
+        raf.close();
+        if (!tmp.renameTo(file)) {
+            // some platforms will not rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot rename " + tmp + " to " + file);
+            }
+        }
+        open();
+    }
+
+    /**
+     * @param _hash
+     * @return the offsets of the records with this uri hash
+     */
+    private long[] candidates(long _hash) {
+        long[] found = new long[1];
+        int n = 0;
+        for (int slot = slot(_hash); 0 != hashes[slot]; slot = next(slot)) {
+            if (_hash == hashes[slot]) {
+                if (n == found.length) {
+                    found = Arrays.copyOf(found, 2 * n);
+                }
+                found[n++] = offsets[slot];
+            }
+        }
+        return n == found.length ? found : Arrays.copyOf(found, n);
+    }
+
+    private int find(String _uri, long _hash) throws IOException {
+        int slot = slot(_hash);
+        while (0 != hashes[slot]) {
+            // another uri may have the same hash
+            if (_hash == hashes[slot] && _uri.equals(readUri(offsets[slot]))) {
+                return slot;
+            }
+            slot = next(slot);
+        }
+        return -1 - slot;
+    }
+
+    private void index(String _uri, long _offset, long _size)
+            throws IOException {
+        long h = hash(_uri);
+        int slot = find(_uri, h);
+        if (slot >= 0) {
+            // replaces an older record
+            liveBytes -= HEADER + readInt(offsets[slot]);
+            offsets[slot] = _offset;
+            liveBytes += _size;
+            return;
+        }
+        if (size + 1 > LOAD_FACTOR * hashes.length) {
+            grow();
+            slot = find(_uri, h);
+        }
+        slot = -1 - slot;
+        hashes[slot] = h;
+        offsets[slot] = _offset;
+        size++;
+        liveBytes += _size;
+    }
+
+    private void grow() {
+        long[] oldHashes = hashes;
+        long[] oldOffsets = offsets;
+        hashes = new long[2 * oldHashes.length];
+        offsets = new long[hashes.length];
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (0 == oldHashes[i]) {
+                continue;
+            }
+            int slot = slot(oldHashes[i]);
+            while (0 != hashes[slot]) {
+                slot = next(slot);
+            }
+            hashes[slot] = oldHashes[i];
+            offsets[slot] = oldOffsets[i];
+        }
+    }
+
+    /**
+     * @param _uri
+     * @return the hash that indexes the uri, never 0
+     */
+    long hash(String _uri) {
+        return HashExclusionSet.hash(_uri);
+    }
+
+    private int slot(long _hash) {
+        return (int) (_hash & (hashes.length - 1));
+    }
+
+    private int next(int _slot) {
+        return (_slot + 1) & (hashes.length - 1);
+    }
+
+    /**
+     * @param _offset
+     * @return the record, or null if it is torn or corrupt
+     * @throws IOException
+     */
+    private Record read(FileChannel _channel, long _offset)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(_channel, header, _offset);
+        int bodyLength = header.getInt(0);
+        if (bodyLength < 16
+                || _offset + HEADER + bodyLength > _channel.size()) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        readFully(_channel, body, _offset + HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, bodyLength);
+        if ((int) crc.getValue() != header.getInt(4)) {
+            return null;
+        }
+        body.flip();
+        Record r = new Record();
+        r.size = HEADER + bodyLength;
+        try {
+            r.timestamp = body.getLong();
+            r.uri = readString(body);
+            r.items = new String[body.getInt()];
+            for (int i = 0; i < r.items.length; i++) {
+                r.items[i] = readString(body);
+            }
+        } catch (RuntimeException e) {
+            // lengths that do not fit the record
+            return null;
+        }
+        return r;
+    }
+
+    private int readInt(long _offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        readFully(channel, b, _offset);
+        return b.getInt(0);
+    }
+
+    /**
+     * @param _offset
+     *            of an indexed record, which has been checked already
+     * @return the uri of the record
+     * @throws IOException
+     */
+    private String readUri(long _offset) throws IOException {
+        int length = readInt(_offset + HEADER + 8);
+        ByteBuffer b = ByteBuffer.allocate(length);
+        readFully(channel, b, _offset + HEADER + 12);
+        return new String(b.array(), UTF8);
+    }
+
+    private static int writeFully(FileChannel _channel, ByteBuffer _buffer,
+            long _offset) throws IOException {
+        int written = 0;
+        while (_buffer.hasRemaining()) {
+            written += _channel.write(_buffer, _offset + written);
+        }
+        return written;
+    }
+
+    private void readFully(FileChannel _channel, ByteBuffer _buffer,
+            long _offset) throws IOException {
+        long position = _offset;
+        while (_buffer.hasRemaining()) {
+            int n = _channel.read(_buffer, position);
+            if (n < 0) {
+                throw new EOFException(file + " at " + position);
+            }
+            position += n;
+        }
+    }
+
+    private static String readString(ByteBuffer _buffer) {
+        int length = _buffer.getInt();
+        String s = new String(_buffer.array(), _buffer.position(), length,
+                UTF8);
+        _buffer.position(_buffer.position() + length);
+        return s;
+    }
+
+    /**
+     * A record being encoded, an item at a time, so that a result is not
+     * held as text until it is complete. A record that grows past the size
+     * limit of the cache is dropped.
+     */
+    public static class Entry {
+
+        private String uri;
+
+        private long limit;
+
+        private ByteBuffer buffer;
+
+        private int countPosition;
+
+        private int count = 0;
+
+        Entry(String _uri, long _timestamp, long _limit) {
+            uri = _uri;
+            limit = _limit;
+            byte[] bytes = _uri.getBytes(UTF8);
+            buffer = ByteBuffer.allocate(Math.max(256, 2 * (HEADER + 16
+                    + bytes.length)));
+            // the length and CRC go here, once the body is written
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(_timestamp);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            countPosition = buffer.position();
+            buffer.putInt(0);
+        }
+
+        /**
+         * @param _item
+         *            the text of the next item
+         */
+        public void add(String _item) {
+            if (null == buffer) {
+                return;
+            }
+            byte[] bytes = _item.getBytes(UTF8);
+            int needed = buffer.position() + 4 + bytes.length;
+            if (limit > 0 && needed > limit) {
+                buffer = null;
+                return;
+            }
+            if (needed > buffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(needed,
+                        2 * buffer.capacity()));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            count++;
+        }
+
+        /**
+         * @return the encoded record, or null if it was dropped
+         */
+        ByteBuffer finish() {
+            if (null == buffer) {
+                return null;
+            }
+            int bodyLength = buffer.position() - HEADER;
+            buffer.putInt(0, bodyLength);
+            buffer.putInt(countPosition, count);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), HEADER, bodyLength);
+            buffer.putInt(4, (int) crc.getValue());
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * One decoded log record.
+     */
+    private static class Record {
+
+        long size;
+
+        long timestamp;
+
+        String uri;
+
+        String[] items;
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * Receives results in-process, for programs that embed a {@link Manager}
+ * instead of reading its output file.
+ *
+ * The worker threads call {@link #receive(String, OutputResult)}
+ * concurrently, one call per uri, so implementations must be thread-safe. A
+ * call that blocks holds up its worker, so a slow consumer throttles the
+ * run instead of letting results pile up in memory.
+ *
+ * Results are streamed from the server, and are closed when the call
+ * returns: read everything needed before returning.
+ */
+public interface ResultSink {
+
+    /**
+     * @param _uri
+     * @param _result
+     * @throws Exception
+     *             to fail the uri, like a failed request
+     */
+    void receive(String _uri, OutputResult _result) throws Exception;
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.IOException;
+
+/**
+ * Hands results to a {@link ResultSink}, in place of an output file.
+ */
+class ResultSinkOutput implements OutputSink {
+
+    private ResultSink sink;
+
+    /**
+     * @param _sink
+     */
+    ResultSinkOutput(ResultSink _sink) {
+        sink = _sink;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.marklogic.developer.corb.OutputSink#write(java.lang.String,
+     * com.marklogic.developer.corb.OutputResult)
+     */
+    public long write(String _uri, OutputResult _result)
+            throws IOException {
+        try {
+            sink.receive(_uri, _result);
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        // the sink does not say how much it read
+        return 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.OutputSink#close()
+     */
+    public void close() {
+        // the sink belongs to the caller
+    }
+
+}
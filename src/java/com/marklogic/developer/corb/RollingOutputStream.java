@@ -0,0 +1,258 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output that rolls over to a new numbered part once the current part
+ * reaches a byte or record limit. Parts roll only between records: the
+ * writer calls {@link #startRecord(int)} and {@link #endRecord()} around
+ * each one. This class is not thread-safe: callers hold the output lock.
+ *
+ * A manifest lists each complete part, with its record count, byte size,
+ * and MD5 checksum. It is rewritten as each part completes, so that
+ * downstream loaders can start on the finished parts while the run goes on.
+ * Its last line is the status of the run: running until the output is
+ * closed, then complete, or aborted if the run stopped early.
+ */
+public class RollingOutputStream extends OutputStream {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String MANIFEST_HEADER = "part\trecords\tbytes\tmd5";
+
+    public static final String STATUS_RUNNING = "running";
+
+    public static final String STATUS_COMPLETE = "complete";
+
+    public static final String STATUS_ABORTED = "aborted";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private String pattern;
+
+    private long maxBytes;
+
+    private long maxRecords;
+
+    private File manifest;
+
+    private List<String> parts = new ArrayList<String>();
+
+    private int part = -1;
+
+    private File file;
+
+    private OutputStream out;
+
+    private MessageDigest digest;
+
+    private long bytes;
+
+    private long records;
+
+    private boolean aborted = false;
+
+    private String status = STATUS_RUNNING;
+
+    /**
+     * @param _pattern
+     *            the part file name pattern, where %g is the part number
+     * @param _maxBytes
+     *            roll before a record would take a part past this size, or
+     *            zero for no limit
+     * @param _maxRecords
+     *            roll once a part has this many records, or zero for no
+     *            limit
+     * @param _manifest
+     * @throws IOException
+     */
+    public RollingOutputStream(String _pattern, long _maxBytes,
+            long _maxRecords, File _manifest) throws IOException {
+        pattern = _pattern;
+        maxBytes = _maxBytes;
+        maxRecords = _maxRecords;
+        manifest = _manifest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has MD5
+            throw new RuntimeException(e);
+        }
+        open();
+    }
+
+    /**
+     * Parts are numbered by the %g token, or if the pattern has none, by a
+     * numeric suffix.
+     *
+     * @param _pattern
+     * @param _part
+     * @return
+     */
+    public static File getPartFile(String _pattern, int _part) {
+        if (_pattern.contains("%g")) {
+            return TextOutputSink.resolve(_pattern, Integer.toString(_part));
+        }
+        return new File(TextOutputSink.resolve(_pattern).getPath() + "."
+                + _part);
+    }
+
+    /**
+     * @param _pattern
+     * @return where the manifest goes by default: %g is "manifest", or if
+     *         the pattern has no %g, a .manifest suffix
+     */
+    public static File getManifestFile(String _pattern) {
+        if (_pattern.contains("%g")) {
+            return TextOutputSink.resolve(_pattern, "manifest");
+        }
+        return new File(TextOutputSink.resolve(_pattern).getPath()
+                + ".manifest");
+    }
+
+    /**
+     * Roll over first, if the record would break a limit. A part always
+     * gets at least one record, however large.
+     *
+     * @param _bytes
+     *            the bytes of the record that are known so far
+     * @throws IOException
+     */
+    public void startRecord(int _bytes) throws IOException {
+        if (0 == records) {
+            return;
+        }
+        if ((maxRecords > 0 && records >= maxRecords)
+                || (maxBytes > 0 && bytes + _bytes > maxBytes)) {
+            finishPart();
+            open();
+        }
+    }
+
+    /**
+     *
+     */
+    public void endRecord() {
+        records++;
+    }
+
+    public void write(int _b) throws IOException {
+        out.write(_b);
+        digest.update((byte) _b);
+        bytes++;
+    }
+
+    public void write(byte[] _b, int _off, int _len) throws IOException {
+        out.write(_b, _off, _len);
+        digest.update(_b, _off, _len);
+        bytes += _len;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Mark the run as stopped early, so that closing the output does not
+     * mark it complete.
+     */
+    public void abort() {
+        aborted = true;
+    }
+
+    /**
+     * Finish the last part, and write the final manifest.
+     */
+    public void close() throws IOException {
+        if (null == out) {
+            return;
+        }
+        status = aborted ? STATUS_ABORTED : STATUS_COMPLETE;
+        finishPart();
+    }
+
+    private void open() throws IOException {
+        part++;
+        file = getPartFile(pattern, part);
+        // parts are complete files, with their own checksums
+        out = new BufferedOutputStream(new FileOutputStream(file, false),
+                BUFFER_SIZE);
+        digest.reset();
+        bytes = 0;
+        records = 0;
+    }
+
+    private void finishPart() throws IOException {
+        out.close();
+        out = null;
+        byte[] md5 = digest.digest();
+        StringBuilder sb = new StringBuilder();
+        sb.append(file.getPath()).append('\t').append(records).append('\t')
+                .append(bytes).append('\t');
+        for (int i = 0; i < md5.length; i++) {
+            sb.append(HEX[(md5[i] >>> 4) & 0xf]).append(HEX[md5[i] & 0xf]);
+        }
+        parts.add(sb.toString());
+        writeManifest();
+    }
+
+    /**
+     * Write to a temporary file, then rename, so readers never see a
+     * partial manifest.
+     *
+     * @throws IOException
+     */
+    private void writeManifest() throws IOException {
+        File tmp = new File(manifest.getPath() + ".tmp");
+        FileWriter w = new FileWriter(tmp);
+        try {
+            w.write(MANIFEST_HEADER);
+            w.write("\n");
+            for (String line : parts) {
+                w.write(line);
+                w.write("\n");
+            }
+            w.write("# ");
+            w.write(status);
+            w.write("\n");
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(manifest)) {
+            // some platforms will not rename over an existing file
+            manifest.delete();
+            if (!tmp.renameTo(manifest)) {
+                throw new IOException("cannot rename " + tmp + " to "
+                        + manifest);
+            }
+        }
+    }
+
+}
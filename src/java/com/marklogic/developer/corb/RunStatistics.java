@@ -0,0 +1,379 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects resource use for a single run, from the JVM MXBeans, and formats
+ * it as a one-line JSON report.
+ *
+ * Allocated bytes and process cpu time rely on the com.sun.management
+ * extensions: if the JVM does not provide them, they are reported as -1.
+ */
+public class RunStatistics {
+
+    public static final String PHASE_STARTUP = "startup";
+
+    public static final String PHASE_ENUMERATION = "enumeration";
+
+    public static final String PHASE_PROCESSING = "processing";
+
+    public static final String PHASE_DRAIN = "drain";
+
+    private static final String[] PHASES = new String[] { PHASE_STARTUP,
+            PHASE_ENUMERATION, PHASE_PROCESSING, PHASE_DRAIN };
+
+    private static Method threadAllocatedBytes = findMethod(
+            "com.sun.management.ThreadMXBean", "getThreadAllocatedBytes",
+            new Class<?>[] { long.class });
+
+    private static Method processCpuTime = findMethod(
+            "com.sun.management.OperatingSystemMXBean", "getProcessCpuTime",
+            new Class<?>[] {});
+
+    private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /** phase start times, in nanos: zero if the phase never started */
+    private long[] phaseStart = new long[PHASES.length];
+
+    private long endNanos;
+
+    private long startGcCount;
+
+    private long startGcMillis;
+
+    private long startCpuNanos;
+
+    private long startAllocatedBytes;
+
+    /** allocations by threads that have already exited */
+    private AtomicLong exitedAllocatedBytes = new AtomicLong();
+
+    /**
+     * threads from the factories that have not exited yet: the lock keeps
+     * a thread from being counted both live and exited, or neither
+     */
+    private Set<Thread> liveThreads = new HashSet<Thread>();
+
+    private AtomicInteger threadNumber = new AtomicInteger();
+
+    private long taskCount;
+
+    private long completedTaskCount;
+
+    private int threadCount;
+
+    /**
+     * Start the clock, and take a baseline for the cumulative counters.
+     */
+    public void start() {
+        phaseStart[0] = System.nanoTime();
+        long[] gc = getGarbageCollection();
+        startGcCount = gc[0];
+        startGcMillis = gc[1];
+        startCpuNanos = getProcessCpuNanos();
+        startAllocatedBytes = getAllocatedBytes(Thread.currentThread());
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.isValid() && MemoryType.HEAP == pool.getType()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @param _phase
+     */
+    public void startPhase(String _phase) {
+        for (int i = 0; i < PHASES.length; i++) {
+            if (PHASES[i].equals(_phase)) {
+                phaseStart[i] = System.nanoTime();
+                return;
+            }
+        }
+        throw new IllegalArgumentException("unknown phase: " + _phase);
+    }
+
+    /**
+     * Stop the clock.
+     */
+    public void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * @param _count
+     */
+    public void setTaskCount(long _count) {
+        taskCount = _count;
+    }
+
+    /**
+     * @param _count
+     */
+    public void setCompletedTaskCount(long _count) {
+        completedTaskCount = _count;
+    }
+
+    /**
+     * @param _count
+     */
+    public void setThreadCount(int _count) {
+        threadCount = _count;
+    }
+
+    /**
+     * Worker threads may be gone by the time the report is written, so the
+     * threads from this factory record their own allocations as they exit,
+     * and the report samples the ones that are still running.
+     *
+     * @param _prefix
+     * @return
+     */
+    public ThreadFactory newThreadFactory(final String _prefix) {
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        threadStarting();
+                        try {
+                            r.run();
+                        } finally {
+                            threadExiting();
+                        }
+                    }
+                }, _prefix + "-" + threadNumber.incrementAndGet());
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Like {@link #newThreadFactory(String)}, for fork-join workers.
+     *
+     * @return
+     */
+    public ForkJoinPool.ForkJoinWorkerThreadFactory newForkJoinWorkerThreadFactory() {
+        return new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                return new ForkJoinWorkerThread(pool) {
+                    protected void onStart() {
+                        super.onStart();
+                        threadStarting();
+                    }
+
+                    protected void onTermination(Throwable exception) {
+                        threadExiting();
+                        super.onTermination(exception);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Call from a thread as it starts, so that the report counts its
+     * allocations even if it is still running.
+     */
+    public void threadStarting() {
+        synchronized (liveThreads) {
+            liveThreads.add(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Call from any thread that ends before the report is written.
+     */
+    public void threadExiting() {
+        Thread t = Thread.currentThread();
+        synchronized (liveThreads) {
+            long bytes = getAllocatedBytes(t);
+            if (bytes > 0) {
+                exitedAllocatedBytes.addAndGet(bytes);
+            }
+            liveThreads.remove(t);
+        }
+    }
+
+    /**
+     * @return the report, as a single line of JSON
+     */
+    public String toJson() {
+        long end = endNanos > 0 ? endNanos : System.nanoTime();
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"version\":\"").append(Manager.VERSION).append('"');
+        sb.append(",\"wallMillis\":").append(
+                toMillis(end - phaseStart[0]));
+
+        sb.append(",\"phases\":{");
+        for (int i = 0; i < PHASES.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(PHASES[i]).append("Millis\":").append(
+                    toMillis(getPhaseNanos(i, end)));
+        }
+        sb.append('}');
+
+        long[] gc = getGarbageCollection();
+        sb.append(",\"gcCount\":").append(gc[0] - startGcCount);
+        sb.append(",\"gcMillis\":").append(gc[1] - startGcMillis);
+
+        long allocated = getAllocatedBytes(Thread.currentThread());
+        if (allocated >= 0) {
+            allocated -= startAllocatedBytes;
+            synchronized (liveThreads) {
+                for (Thread t : liveThreads) {
+                    long bytes = t == Thread.currentThread() ? 0
+                            : getAllocatedBytes(t);
+                    if (bytes > 0) {
+                        allocated += bytes;
+                    }
+                }
+                allocated += exitedAllocatedBytes.get();
+            }
+        }
+        sb.append(",\"allocatedBytes\":").append(allocated);
+        sb.append(",\"peakHeapBytes\":").append(getPeakHeapBytes());
+
+        long cpu = getProcessCpuNanos();
+        sb.append(",\"cpuMillis\":").append(
+                cpu < 0 ? -1 : toMillis(cpu - startCpuNanos));
+
+        sb.append(",\"threadCount\":").append(threadCount);
+        sb.append(",\"peakThreadCount\":").append(threads.getPeakThreadCount());
+
+        sb.append(",\"taskCount\":").append(taskCount);
+        sb.append(",\"completedTaskCount\":").append(completedTaskCount);
+        // throughput is measured over the time that tasks were running
+        long workNanos = getPhaseNanos(2, end) + getPhaseNanos(3, end);
+        long tps = workNanos > 0 ? (long) (completedTaskCount * 1e9 / workNanos)
+                : 0;
+        sb.append(",\"tps\":").append(tps);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private long getPhaseNanos(int _index, long _end) {
+        long start = phaseStart[_index];
+        if (0 == start) {
+            return 0;
+        }
+        // a phase ends when the next phase that actually ran starts
+        for (int i = _index + 1; i < PHASES.length; i++) {
+            if (0 != phaseStart[i]) {
+                return phaseStart[i] - start;
+            }
+        }
+        return _end - start;
+    }
+
+    private static long toMillis(long _nanos) {
+        return _nanos / (1000 * 1000);
+    }
+
+    /**
+     * @return collection count and time, summed over all collectors
+     */
+    private static long[] getGarbageCollection() {
+        long count = 0;
+        long millis = 0;
+        List<GarbageCollectorMXBean> gcs = ManagementFactory
+                .getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean gc : gcs) {
+            // -1 means undefined for this collector
+            if (gc.getCollectionCount() > 0) {
+                count += gc.getCollectionCount();
+            }
+            if (gc.getCollectionTime() > 0) {
+                millis += gc.getCollectionTime();
+            }
+        }
+        return new long[] { count, millis };
+    }
+
+    /**
+     * The pools peak at different times, so this is an upper bound.
+     *
+     * @return
+     */
+    private static long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.isValid() && MemoryType.HEAP == pool.getType()
+                    && null != pool.getPeakUsage()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private long getAllocatedBytes(Thread _thread) {
+        if (null == threadAllocatedBytes) {
+            return -1;
+        }
+        try {
+            return ((Long) threadAllocatedBytes.invoke(threads,
+                    new Object[] { Long.valueOf(_thread.getId()) }))
+                    .longValue();
+        } catch (Exception e) {
+            // not supported, or not enabled
+            return -1;
+        }
+    }
+
+    private static long getProcessCpuNanos() {
+        if (null == processCpuTime) {
+            return -1;
+        }
+        OperatingSystemMXBean os = ManagementFactory
+                .getOperatingSystemMXBean();
+        try {
+            return ((Long) processCpuTime.invoke(os, new Object[] {}))
+                    .longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static Method findMethod(String _className, String _name,
+            Class<?>[] _types) {
+        try {
+            return Class.forName(_className).getMethod(_name, _types);
+        } catch (Exception e) {
+            // not a Sun-derived JVM
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes every output line to a single file, sorted by the whole line or by
+ * its key: the text before the first tab. Lines compare in Java string
+ * order, and lines with equal keys keep their arrival order.
+ *
+ * Lines collect in memory, up to a budget. A full chunk is sorted and
+ * spilled to a compressed run file on a pool of spill threads, one per
+ * core, while the workers go on filling the next chunk. On close, the runs
+ * are merged with a k-way merge, in more than one pass if there are many of
+ * them. Output that fits in the budget never touches the disk.
+ */
+public class SortingOutputSink implements OutputSink {
+
+    /** sort by the whole line */
+    public static final String KEY_LINE = TransformOptions.OUTPUT_SORT_LINE;
+
+    /** sort by the text before the first tab */
+    public static final String KEY_FIELD = TransformOptions.OUTPUT_SORT_KEY;
+
+    /** the most runs to read at once */
+    public static final int MERGE_FACTOR = 64;
+
+    private static final char NEWLINE = '\n';
+
+    private static final char KEY_SEPARATOR = PartitionedOutputSink.KEY_SEPARATOR;
+
+    /** rough heap cost of a String, beyond its characters */
+    private static final int LINE_OVERHEAD = 64;
+
+    private static final Charset RUN_CHARSET = Charset.forName("UTF-8");
+
+    private File output;
+
+    private File tempDirectory;
+
+    private Comparator<String> comparator;
+
+    private long chunkBudget;
+
+    private List<String> chunk = new ArrayList<String>();
+
+    private long chunkBytes = 0;
+
+    private List<File> runs = new ArrayList<File>();
+
+    private ExecutorService spillers;
+
+    /** bounds the chunks being sorted or spilled, and so the memory */
+    private Semaphore inFlight;
+
+    private AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    private boolean closed = false;
+
+    /**
+     * @param _output
+     * @param _key
+     *            {@link #KEY_LINE} or {@link #KEY_FIELD}
+     * @param _memory
+     *            the budget for lines held in memory, in bytes
+     * @param _tempDirectory
+     *            for the sorted runs, or null for the system default
+     */
+    public SortingOutputSink(File _output, String _key, long _memory,
+            File _tempDirectory) {
+        if (KEY_LINE.equals(_key)) {
+            comparator = new Comparator<String>() {
+                public int compare(String _a, String _b) {
+                    return _a.compareTo(_b);
+                }
+            };
+        } else if (KEY_FIELD.equals(_key)) {
+            comparator = new Comparator<String>() {
+                public int compare(String _a, String _b) {
+                    return compareKeys(_a, _b);
+                }
+            };
+        } else {
+            throw new IllegalArgumentException("unknown sort key: " + _key);
+        }
+        output = _output;
+        tempDirectory = _tempDirectory;
+        int threads = Runtime.getRuntime().availableProcessors();
+        // one chunk filling, plus one per spill thread
+        chunkBudget = Math.max(1, _memory / (threads + 1));
+        inFlight = new Semaphore(threads);
+        spillers = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * @param _a
+     * @param _b
+     * @return the order of the keys before the first tab
+     */
+    static int compareKeys(String _a, String _b) {
+        int i = 0;
+        while (true) {
+            boolean aEnd = i == _a.length() || KEY_SEPARATOR == _a.charAt(i);
+            boolean bEnd = i == _b.length() || KEY_SEPARATOR == _b.charAt(i);
+            if (aEnd || bEnd) {
+                return aEnd == bEnd ? 0 : (aEnd ? -1 : 1);
+            }
+            int diff = _a.charAt(i) - _b.charAt(i);
+            if (0 != diff) {
+                return diff;
+            }
+            i++;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.marklogic.developer.corb.OutputSink#write(java.lang.String,
+     * com.marklogic.developer.corb.OutputResult)
+     */
+    public long write(String _uri, OutputResult _result)
+            throws IOException {
+        checkError();
+        List<String> lines = new ArrayList<String>();
+        StringBuilder line = new StringBuilder();
+        char[] chars = new char[8 * 1024];
+        long size = 0;
+        while (_result.hasNext()) {
+            Reader r = _result.next().asReader();
+            try {
+                int n;
+                while ((n = r.read(chars)) > -1) {
+                    size += n;
+                    for (int i = 0; i < n; i++) {
+                        if (NEWLINE == chars[i]) {
+                            lines.add(line.toString());
+                            line.setLength(0);
+                        } else {
+                            line.append(chars[i]);
+                        }
+                    }
+                }
+            } finally {
+                r.close();
+            }
+            // the end of an item ends a line
+            if (line.length() > 0) {
+                lines.add(line.toString());
+                line.setLength(0);
+            }
+        }
+        add(lines);
+        return size;
+    }
+
+    private synchronized void add(List<String> _lines) throws IOException {
+        if (closed) {
+            throw new IOException("output is closed");
+        }
+        for (String line : _lines) {
+            chunk.add(line);
+            chunkBytes += LINE_OVERHEAD + 2 * line.length();
+        }
+        if (chunkBytes >= chunkBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Hand the chunk to a spill thread. Call with the monitor held.
+     *
+     * @throws IOException
+     */
+    private void spill() throws IOException {
+        final List<String> full = chunk;
+        chunk = new ArrayList<String>();
+        chunkBytes = 0;
+        final File run = newRunFile();
+        runs.add(run);
+        try {
+            // wait for a spill thread, so memory stays within budget
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while spilling output");
+        }
+        spillers.execute(new Runnable() {
+            public void run() {
+                try {
+                    Collections.sort(full, comparator);
+                    writeRun(full, run);
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sort whatever is left, then merge the runs into the output.
+     *
+     * @see com.marklogic.developer.corb.OutputSink#close()
+     */
+    public void close() throws IOException {
+        List<String> last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = chunk;
+            chunk = null;
+        }
+        try {
+            spillers.shutdown();
+            while (!spillers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting for the spills
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while spilling output");
+        }
+        try {
+            checkError();
+            Collections.sort(last, comparator);
+            if (runs.isEmpty()) {
+                // it all fit in memory
+                Writer w = newOutputWriter();
+                try {
+                    for (String line : last) {
+                        w.write(line);
+                        w.write(NEWLINE);
+                    }
+                } finally {
+                    w.close();
+                }
+                return;
+            }
+            if (!last.isEmpty()) {
+                File run = newRunFile();
+                writeRun(last, run);
+                runs.add(run);
+            }
+            last = null;
+            // merge in passes, until the runs can all be open at once. Each
+            // group of runs is replaced where it was, to keep the run order,
+            // so that equal keys keep their order too.
+            int start = 0;
+            while (runs.size() > MERGE_FACTOR) {
+                if (start >= runs.size() - 1) {
+                    // the next pass
+                    start = 0;
+                }
+                int end = Math.min(start + MERGE_FACTOR, runs.size());
+                List<File> group = new ArrayList<File>(runs.subList(start,
+                        end));
+                File run = newRunFile();
+                // listed first, so that it is deleted if the merge fails
+                runs.add(start, run);
+                merge(group, newRunWriter(run));
+                runs.subList(start + 1, end + 1).clear();
+                start++;
+            }
+            merge(runs, newOutputWriter());
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+    }
+
+    private void checkError() throws IOException {
+        Throwable t = error.get();
+        if (null == t) {
+            return;
+        }
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        throw new IOException(t);
+    }
+
+    private File newRunFile() throws IOException {
+        return File.createTempFile("corb-sort-", ".run.gz", tempDirectory);
+    }
+
+    private Writer newOutputWriter() throws IOException {
+        // like the text output, in the platform encoding
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                output, false), Charset.defaultCharset()),
+                TextOutputSink.BUFFER_SIZE);
+    }
+
+    private static Writer newRunWriter(File _run) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(_run),
+                        TextOutputSink.BUFFER_SIZE), RUN_CHARSET),
+                TextOutputSink.BUFFER_SIZE);
+    }
+
+    private static Reader newRunReader(File _run) throws IOException {
+        return new InputStreamReader(new GZIPInputStream(
+                new FileInputStream(_run), TextOutputSink.BUFFER_SIZE),
+                RUN_CHARSET);
+    }
+
+    private static void writeRun(List<String> _lines, File _run)
+            throws IOException {
+        Writer w = newRunWriter(_run);
+        try {
+            for (String line : _lines) {
+                w.write(line);
+                w.write(NEWLINE);
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Merge sorted runs into the writer, then delete the runs. Ties go to
+     * the earlier run, so that equal keys keep their order.
+     *
+     * @param _runs
+     * @param _writer
+     * @throws IOException
+     */
+    private void merge(List<File> _runs, Writer _writer) throws IOException {
+        PriorityQueue<Head> heads = new PriorityQueue<Head>(Math.max(1,
+                _runs.size()), new Comparator<Head>() {
+            public int compare(Head _a, Head _b) {
+                int diff = comparator.compare(_a.line, _b.line);
+                return 0 != diff ? diff : _a.index - _b.index;
+            }
+        });
+        try {
+            for (int i = 0; i < _runs.size(); i++) {
+                Head h = new Head(i, newRunReader(_runs.get(i)));
+                if (h.next()) {
+                    heads.add(h);
+                } else {
+                    h.reader.close();
+                }
+            }
+            Head h;
+            while (null != (h = heads.poll())) {
+                _writer.write(h.line);
+                _writer.write(NEWLINE);
+                if (h.next()) {
+                    heads.add(h);
+                } else {
+                    h.reader.close();
+                }
+            }
+        } finally {
+            for (Head h : heads) {
+                h.reader.close();
+            }
+            _writer.close();
+        }
+        for (File run : _runs) {
+            run.delete();
+        }
+    }
+
+    /**
+     * The next line of a run. Lines end at a newline only, as they do when
+     * the output is split into lines, so a carriage return is kept.
+     */
+    private static class Head {
+
+        int index;
+
+        Reader reader;
+
+        String line;
+
+        private char[] buffer = new char[TextOutputSink.BUFFER_SIZE];
+
+        private int position = 0;
+
+        private int limit = 0;
+
+        private StringBuilder sb = new StringBuilder();
+
+        Head(int _index, Reader _reader) {
+            index = _index;
+            reader = _reader;
+        }
+
+        boolean next() throws IOException {
+            sb.setLength(0);
+            while (true) {
+                if (position == limit) {
+                    int n = reader.read(buffer, 0, buffer.length);
+                    if (n < 0) {
+                        // every line in a run ends with a newline
+                        line = sb.length() > 0 ? sb.toString() : null;
+                        sb.setLength(0);
+                        return null != line;
+                    }
+                    position = 0;
+                    limit = n;
+                }
+                for (int i = position; i < limit; i++) {
+                    if (NEWLINE == buffer[i]) {
+                        sb.append(buffer, position, i - position);
+                        position = i + 1;
+                        line = sb.toString();
+                        return true;
+                    }
+                }
+                sb.append(buffer, position, limit - position);
+                position = limit;
+            }
+        }
+    }
+
+}
@@ -18,10 +18,13 @@
  */
 package com.marklogic.developer.corb;
 
-import com.marklogic.xcc.ContentSource;
-import com.marklogic.xcc.Session;
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
 
 import com.marklogic.developer.SimpleLogger;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.Session;
 
 /**
  * @author Michael Blakeley, michael.blakeley@marklogic.com
@@ -32,6 +35,22 @@ public class TaskFactory {
 
     protected String moduleUri = null;
 
+    protected TraceRecorder traceRecorder = null;
+
+    protected CompletionTracker completionTracker = null;
+
+    protected RequestOptions requestOptions = new RequestOptions();
+
+    protected LocalTransform localTransform = null;
+
+    protected ForkJoinPool localPool = null;
+
+    protected ResultCache resultCache = null;
+
+    protected BigInteger pointInTime = null;
+
+    protected SimpleLogger logger = null;
+
     /**
      * @param _cs
      * @param _uri
@@ -39,13 +58,15 @@ public class TaskFactory {
     public TaskFactory(ContentSource _cs, String _uri) {
         contentSource = _cs;
         moduleUri = _uri;
+        // results stream to the output, so they must not be cached
+        requestOptions.setCacheResult(false);
     }
 
     /**
      * @param _uri
      * @return
      */
-    public Transform newTask(String _uri, SimpleLogger _logger) {
+    public Transform newTask(String _uri, OutputSink _sink) {
         if (null == contentSource) {
             throw new NullPointerException("null content source");
         }
@@ -57,7 +78,131 @@ public class TaskFactory {
         }
 
         // pass a reference to this factory, for later
-        return new Transform(this, _uri, _logger);
+        return new Transform(this, _uri, _sink);
+    }
+
+    /**
+     * @param _queue
+     * @param _uris
+     * @param _sink
+     * @return a worker loop for the indexed dispatch mode
+     */
+    public IndexWorker newWorker(IndexQueue _queue, UriIndex _uris,
+            OutputSink _sink) {
+        if (null == contentSource) {
+            throw new NullPointerException("null content source");
+        }
+        if (null == moduleUri) {
+            throw new NullPointerException("null module uri");
+        }
+        return new IndexWorker(_queue, _uris, new Transform(this, null,
+                _sink), completionTracker);
+    }
+
+    /**
+     * @param _uris
+     * @param _count
+     *            how many of the uris are in the batch
+     * @param _sink
+     * @return a task that fetches the uris for the local transform, if
+     *         there is one, or serves them from the result cache, if there
+     *         is one, or else runs them in one update transaction
+     */
+    public Runnable newBatchTask(String[] _uris, int _count,
+            OutputSink _sink) {
+        if (null == contentSource) {
+            throw new NullPointerException("null content source");
+        }
+        if (null == moduleUri) {
+            throw new NullPointerException("null module uri");
+        }
+        if (null == _uris) {
+            throw new NullPointerException("null uris");
+        }
+        if (null != localTransform) {
+            return new BulkFetchTransform(this, _uris, _count, _sink,
+                    localTransform, localPool);
+        }
+        if (null != resultCache) {
+            return new CachedTransform(this, _uris, _count, _sink,
+                    resultCache);
+        }
+        return new BatchTransform(this, _uris, _count, _sink);
+    }
+
+    /**
+     * @param _queue
+     * @param _uris
+     * @param _batchSize
+     * @param _sink
+     * @return a worker loop for the indexed dispatch mode, that runs uris in
+     *         batches like {@link #newBatchTask(String[], int, OutputSink)}
+     */
+    public IndexWorker newBatchWorker(IndexQueue _queue, UriIndex _uris,
+            int _batchSize, OutputSink _sink) {
+        if (null == contentSource) {
+            throw new NullPointerException("null content source");
+        }
+        if (null == moduleUri) {
+            throw new NullPointerException("null module uri");
+        }
+        BatchProcessor batch;
+        if (null != localTransform) {
+            batch = new BulkFetchTransform(this, null, 0, _sink,
+                    localTransform, localPool);
+        } else if (null != resultCache) {
+            batch = new CachedTransform(this, null, 0, _sink, resultCache);
+        } else {
+            batch = new BatchTransform(this, null, 0, _sink);
+        }
+        return new IndexWorker(_queue, _uris, batch, _batchSize,
+                completionTracker);
+    }
+
+    /**
+     * Fetch documents in batches, and transform them on the client.
+     *
+     * @param _transform
+     * @param _pool
+     *            runs the transform
+     */
+    public void setLocalTransform(LocalTransform _transform,
+            ForkJoinPool _pool) {
+        localTransform = _transform;
+        localPool = _pool;
+    }
+
+    /**
+     * Serve the results of unchanged documents from a cache.
+     *
+     * @param _cache
+     */
+    public void setResultCache(ResultCache _cache) {
+        resultCache = _cache;
+    }
+
+    /**
+     * Run every request as a query at this timestamp.
+     *
+     * @param _timestamp
+     */
+    public void setPointInTime(BigInteger _timestamp) {
+        pointInTime = _timestamp;
+        requestOptions.setEffectivePointInTime(_timestamp);
+    }
+
+    /**
+     * @return the timestamp for queries, or null for the latest state
+     */
+    public BigInteger getPointInTime() {
+        return pointInTime;
+    }
+
+    /**
+     * @return the options for process module requests
+     */
+    public RequestOptions getRequestOptions() {
+        return requestOptions;
     }
 
     /**
@@ -67,6 +212,53 @@ public class TaskFactory {
         return moduleUri;
     }
 
+    /**
+     * @return the run's logger, for tasks to warn about what they recover
+     *         from
+     */
+    public SimpleLogger getLogger() {
+        if (null == logger) {
+            logger = SimpleLogger.getSimpleLogger();
+        }
+        return logger;
+    }
+
+    /**
+     * @param _logger
+     */
+    public void setLogger(SimpleLogger _logger) {
+        logger = _logger;
+    }
+
+    /**
+     * @return the trace recorder, or null if the run is not being traced
+     */
+    public TraceRecorder getTraceRecorder() {
+        return traceRecorder;
+    }
+
+    /**
+     * @param _recorder
+     */
+    public void setTraceRecorder(TraceRecorder _recorder) {
+        traceRecorder = _recorder;
+    }
+
+    /**
+     * @return the tracker that tasks report completion to, when they are
+     *         run as a Runnable
+     */
+    public CompletionTracker getCompletionTracker() {
+        return completionTracker;
+    }
+
+    /**
+     * @param _tracker
+     */
+    public void setCompletionTracker(CompletionTracker _tracker) {
+        completionTracker = _tracker;
+    }
+
     /**
      * @return
      */
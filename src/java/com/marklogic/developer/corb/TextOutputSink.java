@@ -0,0 +1,365 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes each result as text, one record per uri, in the same format as the
+ * old output logger: the items are separated by newlines, and the result
+ * ends with a newline. Optionally each item is a record of its own, so that
+ * the records of different uris may interleave.
+ *
+ * Results are streamed from XCC in chunks, and encoded into a buffer that is
+ * written to the file in one piece. A result that does not fit in the buffer
+ * holds the file lock while the rest of it streams in, so it stays
+ * contiguous: the size of a result does not set a floor on heap use. If
+ * such a result fails part way through, what was already written remains,
+ * ended by a newline, so that the next record still starts a line.
+ */
+public class TextOutputSink implements OutputSink {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char SEPARATOR = '\n';
+
+    private OutputStream out;
+
+    /** null unless the output rolls over */
+    private RollingOutputStream rolling;
+
+    private Charset charset;
+
+    private boolean closed = false;
+
+    private boolean recordPerItem = false;
+
+    private ReentrantLock lock = new ReentrantLock();
+
+    /** one buffer per concurrent writer, reused across results */
+    private ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+
+    /**
+     * Append to a file, named by a pattern like the ones that
+     * java.util.logging.FileHandler accepts.
+     *
+     * @param _pattern
+     * @throws IOException
+     */
+    public TextOutputSink(String _pattern) throws IOException {
+        this(new FileOutputStream(resolve(_pattern), true), Charset
+                .defaultCharset());
+    }
+
+    /**
+     * Write to numbered parts, rolling over at a byte or record limit, with
+     * a manifest of the parts. Parts are overwritten, not appended to.
+     *
+     * @param _pattern
+     * @param _maxBytes
+     * @param _maxRecords
+     * @param _manifest
+     * @throws IOException
+     */
+    public TextOutputSink(String _pattern, long _maxBytes, long _maxRecords,
+            File _manifest) throws IOException {
+        rolling = new RollingOutputStream(_pattern, _maxBytes, _maxRecords,
+                _manifest);
+        out = rolling;
+        charset = Charset.defaultCharset();
+    }
+
+    /**
+     * @param _out
+     * @param _charset
+     */
+    public TextOutputSink(OutputStream _out, Charset _charset) {
+        out = new BufferedOutputStream(_out, BUFFER_SIZE);
+        charset = _charset;
+    }
+
+    /**
+     * @param _perItem
+     *            if true, each item of a result is a separate record, and
+     *            an empty result writes nothing
+     */
+    public void setRecordPerItem(boolean _perItem) {
+        recordPerItem = _perItem;
+    }
+
+    /**
+     * Expand the FileHandler tokens: %t is the temporary directory, %h is
+     * the user's home directory, and %% is a percent sign. There is only
+     * one file, so %g is 0. Claim %u with {@link OutputLock} first.
+     *
+     * @param _pattern
+     * @return
+     */
+    public static File resolve(String _pattern) {
+        return resolve(_pattern, "0");
+    }
+
+    /**
+     * @param _pattern
+     * @param _generation
+     *            the replacement for %g
+     * @return
+     * @throws IllegalArgumentException
+     *             if %u has not been claimed
+     */
+    public static File resolve(String _pattern, String _generation) {
+        StringBuilder sb = new StringBuilder(_pattern.length() + 32);
+        for (int i = 0; i < _pattern.length(); i++) {
+            char c = _pattern.charAt(i);
+            if ('%' != c || i + 1 == _pattern.length()) {
+                sb.append(c);
+                continue;
+            }
+            char token = _pattern.charAt(++i);
+            if ('t' == token) {
+                sb.append(System.getProperty("java.io.tmpdir"));
+            } else if ('h' == token) {
+                sb.append(System.getProperty("user.home"));
+            } else if ('g' == token) {
+                sb.append(_generation);
+            } else if ('u' == token) {
+                throw new IllegalArgumentException(
+                        "claim %u with an OutputLock: " + _pattern);
+            } else if ('%' == token) {
+                sb.append('%');
+            } else {
+                sb.append(c).append(token);
+            }
+        }
+        return new File(sb.toString());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.marklogic.developer.corb.OutputSink#write(java.lang.String,
+     * com.marklogic.developer.corb.OutputResult)
+     */
+    public long write(String _uri, OutputResult _result)
+            throws IOException {
+        Buffer b = buffers.poll();
+        if (null == b) {
+            b = new Buffer();
+        }
+        Throwable failure = null;
+        try {
+            long size = 0;
+            boolean first = true;
+            while (_result.hasNext()) {
+                OutputItem item = _result.next();
+                if (!first && !recordPerItem) {
+                    b.separator();
+                    size++;
+                }
+                first = false;
+                size += b.append(item);
+                if (recordPerItem) {
+                    b.endRecord();
+                }
+            }
+            if (!recordPerItem) {
+                b.endRecord();
+            }
+            return size;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            try {
+                b.release(null == failure);
+            } catch (IOException e) {
+                // the write failure is the one to report
+                failure.addSuppressed(e);
+            } finally {
+                buffers.offer(b);
+            }
+        }
+    }
+
+    /**
+     * Mark the run as stopped early: a rolled output's manifest then says it
+     * was aborted, not complete, when the output is closed.
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            if (null != rolling) {
+                rolling.abort();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.OutputSink#close()
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            out.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void lockOutput() throws IOException {
+        lock.lock();
+        if (closed) {
+            lock.unlock();
+            throw new IOException("output is closed");
+        }
+    }
+
+    /**
+     * Encoded bytes for one result. Until the result outgrows the buffer,
+     * nothing reaches the file.
+     */
+    private class Buffer extends OutputStream {
+
+        private byte[] bytes = new byte[BUFFER_SIZE];
+
+        private int count = 0;
+
+        private boolean locked = false;
+
+        private char[] chars = new char[8 * 1024];
+
+        private Writer writer = new OutputStreamWriter(this, charset);
+
+        long append(OutputItem _item) throws IOException {
+            long size = 0;
+            Reader r = _item.asReader();
+            try {
+                int n;
+                while ((n = r.read(chars)) > -1) {
+                    writer.write(chars, 0, n);
+                    size += n;
+                }
+            } finally {
+                r.close();
+            }
+            return size;
+        }
+
+        void separator() throws IOException {
+            writer.write(SEPARATOR);
+        }
+
+        /**
+         * Terminate the record, and write whatever is still buffered.
+         *
+         * @throws IOException
+         */
+        void endRecord() throws IOException {
+            writer.write(SEPARATOR);
+            // push any encoded bytes into this buffer
+            writer.flush();
+            if (!locked) {
+                lockRecord();
+            }
+            out.write(bytes, 0, count);
+            count = 0;
+            if (null != rolling) {
+                rolling.endRecord();
+            }
+            locked = false;
+            lock.unlock();
+        }
+
+        private void lockRecord() throws IOException {
+            lockOutput();
+            locked = true;
+            if (null != rolling) {
+                rolling.startRecord(count);
+            }
+        }
+
+        /**
+         * After a failure, drop what is buffered, and end a record that has
+         * already spilled to the output, so that the next one starts a line
+         * of its own. The output is unlocked even if that fails.
+         *
+         * @param _ok
+         * @throws IOException
+         */
+        void release(boolean _ok) throws IOException {
+            if (_ok) {
+                return;
+            }
+            count = 0;
+            // the encoder may hold part of a character
+            writer = new OutputStreamWriter(this, charset);
+            if (!locked) {
+                return;
+            }
+            try {
+                out.write(String.valueOf(SEPARATOR).getBytes(charset));
+                if (null != rolling) {
+                    rolling.endRecord();
+                }
+            } finally {
+                locked = false;
+                lock.unlock();
+            }
+        }
+
+        public void write(int _b) throws IOException {
+            write(new byte[] { (byte) _b }, 0, 1);
+        }
+
+        public void write(byte[] _b, int _off, int _len) throws IOException {
+            if (!locked && count + _len > bytes.length) {
+                // too big to buffer: stream the rest under the lock
+                lockRecord();
+                out.write(bytes, 0, count);
+                count = 0;
+            }
+            if (locked) {
+                out.write(_b, _off, _len);
+                return;
+            }
+            System.arraycopy(_b, _off, bytes, count, _len);
+            count += _len;
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records a compact binary trace of a run: the uris in the order the uris
+ * module returned them, and the server latency and response size of every
+ * task. {@link TraceReplay} reads the trace back, so that the fake content
+ * source can reproduce the run's timing profile.
+ *
+ * The file is gzipped. After an 8-byte magic number and the start time of
+ * the run, it is a sequence of records. A uri record is the byte 'U' and
+ * the uri, and the uri records are numbered from 0 in order. A task record
+ * is the byte 'T', the number of its uri record, the latency in
+ * microseconds, the response size in characters, and a status byte. A task
+ * whose uri has no number to hand, such as the second of a duplicate uri,
+ * is recorded as the byte 'N', the uri, and the rest of a task record.
+ * Numbers are unsigned variable-length integers, seven bits per byte, and a
+ * string is its length in bytes, as a 4-byte int, then its UTF-8 bytes.
+ *
+ * Only the numbers of uris whose tasks have not been recorded yet are kept
+ * in memory, which is about the depth of the queue.
+ *
+ * Recording is synchronized, and stops quietly once the recorder is closed.
+ * A write error stops recording too, but does not fail the run: it is
+ * reported when the recorder is closed.
+ */
+public class TraceRecorder {
+
+    public static final long MAGIC = 0x434f524254524332L; // CORBTRC2
+
+    public static final byte URI_RECORD = 'U';
+
+    public static final byte TASK_RECORD = 'T';
+
+    public static final byte NAMED_TASK_RECORD = 'N';
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final byte STATUS_OK = 0;
+
+    public static final byte STATUS_ERROR = 1;
+
+    private DataOutputStream out;
+
+    private File file;
+
+    private IOException error;
+
+    /** the numbers of uris that are waiting for their tasks */
+    private Map<String, Long> pending = new HashMap<String, Long>();
+
+    private long uriCount = 0;
+
+    /**
+     * @param _file
+     * @throws IOException
+     */
+    public TraceRecorder(File _file) throws IOException {
+        file = _file;
+        out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(_file), 64 * 1024)));
+        out.writeLong(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * @return
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param _uri
+     */
+    public synchronized void recordUri(String _uri) {
+        if (null == out) {
+            return;
+        }
+        try {
+            out.writeByte(URI_RECORD);
+            writeString(out, _uri);
+            pending.put(_uri, Long.valueOf(uriCount++));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param _uri
+     * @param _latencyNanos
+     * @param _responseSize
+     * @param _ok
+     */
+    public synchronized void recordTask(String _uri, long _latencyNanos,
+            long _responseSize, boolean _ok) {
+        if (null == out) {
+            return;
+        }
+        try {
+            Long index = pending.remove(_uri);
+            if (null == index) {
+                out.writeByte(NAMED_TASK_RECORD);
+                writeString(out, _uri);
+            } else {
+                out.writeByte(TASK_RECORD);
+                writeVarLong(out, index.longValue());
+            }
+            writeVarLong(out, _latencyNanos / 1000);
+            writeVarLong(out, _responseSize);
+            out.writeByte(_ok ? STATUS_OK : STATUS_ERROR);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             if any write failed
+     */
+    public synchronized void close() throws IOException {
+        if (null != out) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (null == error) {
+                    error = e;
+                }
+            } finally {
+                out = null;
+                pending = null;
+            }
+        }
+        if (null != error) {
+            throw error;
+        }
+    }
+
+    private void fail(IOException _e) {
+        error = _e;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // already failed
+        }
+        out = null;
+        pending = null;
+    }
+
+    private static void writeString(DataOutputStream _out, String _value)
+            throws IOException {
+        byte[] bytes = _value.getBytes(UTF8);
+        _out.writeInt(bytes.length);
+        _out.write(bytes);
+    }
+
+    private static void writeVarLong(DataOutputStream _out, long _value)
+            throws IOException {
+        long v = Math.max(0, _value);
+        while ((v & ~0x7fL) != 0) {
+            _out.writeByte((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        _out.writeByte((int) v);
+    }
+
+}
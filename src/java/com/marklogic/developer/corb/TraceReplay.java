@@ -0,0 +1,324 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a trace written by {@link TraceRecorder}: the uri order, and the
+ * latency, response size and status of each task.
+ *
+ * The trace is streamed, not loaded: opening it counts the records, then
+ * one cursor reads the uris in order as the uris module returns them, and
+ * another reads the tasks as they are asked for. Tasks were recorded in
+ * about the order that the uris were queued, so only the tasks read ahead
+ * of their requests, and the uris still waiting for their tasks, are held
+ * in memory. Asking for a task that was never recorded reads ahead to the
+ * end of the trace.
+ */
+public class TraceReplay {
+
+    /**
+     * The recorded behavior of one task.
+     */
+    public static class Task {
+
+        public final long latencyMicros;
+
+        public final int responseSize;
+
+        public final boolean ok;
+
+        Task(long _latencyMicros, int _responseSize, boolean _ok) {
+            latencyMicros = _latencyMicros;
+            responseSize = _responseSize;
+            ok = _ok;
+        }
+    }
+
+    private File file;
+
+    private long startMillis;
+
+    private int uriCount = 0;
+
+    private int taskCount = 0;
+
+    /** the uri cursor, and the number of the uri it reads next */
+    private DataInputStream uriIn;
+
+    private int nextUri;
+
+    /** the task cursor, and the number of the next uri record it reads */
+    private DataInputStream taskIn;
+
+    private long taskUriCount;
+
+    /** the task cursor has reached the end of the trace */
+    private boolean tasksRead = false;
+
+    /** uris that the task cursor has passed, waiting for their tasks */
+    private Map<Long, String> waiting = new HashMap<Long, String>();
+
+    /** tasks that the task cursor has read ahead of their requests */
+    private Map<String, Task> tasks = new HashMap<String, Task>();
+
+    /**
+     * @param _file
+     * @throws IOException
+     */
+    public TraceReplay(File _file) throws IOException {
+        file = _file;
+        DataInputStream in = open();
+        try {
+            int type;
+            while (-1 != (type = in.read())) {
+                if (TraceRecorder.URI_RECORD == type) {
+                    skipString(in);
+                    uriCount++;
+                } else {
+                    skipTask(in, type);
+                    taskCount++;
+                }
+            }
+        } catch (EOFException e) {
+            // a run that died may leave a truncated trace: keep what we have
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of uris that the uris module returned
+     */
+    public int getUriCount() {
+        return uriCount;
+    }
+
+    /**
+     * Read a uri, in the order that the uris module returned them. Reading
+     * them in order is cheapest.
+     *
+     * @param _index
+     * @return
+     * @throws IOException
+     */
+    public synchronized String getUri(int _index) throws IOException {
+        if (_index < 0 || _index >= uriCount) {
+            throw new IndexOutOfBoundsException(_index + " of " + uriCount);
+        }
+        if (null == uriIn || _index < nextUri) {
+            // start over
+            if (null != uriIn) {
+                uriIn.close();
+            }
+            uriIn = open();
+            nextUri = 0;
+        }
+        while (true) {
+            int type = uriIn.read();
+            if (TraceRecorder.URI_RECORD != type) {
+                skipTask(uriIn, type);
+                continue;
+            }
+            if (nextUri++ == _index) {
+                return readString(uriIn);
+            }
+            skipString(uriIn);
+        }
+    }
+
+    /**
+     * @param _uri
+     * @return the recorded task, or null if it never completed
+     * @throws IOException
+     */
+    public synchronized Task getTask(String _uri) throws IOException {
+        if (null == taskIn && !tasksRead) {
+            taskIn = open();
+        }
+        Task task = tasks.remove(_uri);
+        while (null == task && null != taskIn) {
+            try {
+                task = readNextTask(_uri);
+            } catch (EOFException e) {
+                // the end of the trace, or a truncated trace: the rest of
+                // the tasks never completed
+                taskIn.close();
+                taskIn = null;
+                tasksRead = true;
+                waiting.clear();
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Read the next record with the task cursor.
+     *
+     * @param _uri
+     * @return the task for the uri, if that is the record read
+     * @throws IOException
+     */
+    private Task readNextTask(String _uri) throws IOException {
+        int type = taskIn.read();
+        if (-1 == type) {
+            throw new EOFException();
+        }
+        if (TraceRecorder.URI_RECORD == type) {
+            waiting.put(Long.valueOf(taskUriCount++), readString(taskIn));
+            return null;
+        }
+        String uri;
+        if (TraceRecorder.TASK_RECORD == type) {
+            uri = waiting.remove(Long.valueOf(readVarLong(taskIn)));
+        } else if (TraceRecorder.NAMED_TASK_RECORD == type) {
+            uri = readString(taskIn);
+        } else {
+            throw new IOException("unexpected record type " + type + " in "
+                    + file);
+        }
+        Task task = readTask(taskIn);
+        if (_uri.equals(uri)) {
+            return task;
+        }
+        if (null != uri) {
+            tasks.put(uri, task);
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of tasks in the trace
+     */
+    public int getTaskCount() {
+        return taskCount;
+    }
+
+    /**
+     * @return
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Close both cursors.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        try {
+            if (null != uriIn) {
+                uriIn.close();
+            }
+        } finally {
+            uriIn = null;
+            if (null != taskIn) {
+                taskIn.close();
+            }
+            taskIn = null;
+        }
+    }
+
+    private DataInputStream open() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file), 64 * 1024)));
+        boolean ok = false;
+        try {
+            if (TraceRecorder.MAGIC != in.readLong()) {
+                throw new IOException("not a corb trace, or from another"
+                        + " version of corb: " + file);
+            }
+            startMillis = in.readLong();
+            ok = true;
+            return in;
+        } finally {
+            if (!ok) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Skip a task record.
+     *
+     * @param _in
+     * @param _type
+     * @throws IOException
+     */
+    private void skipTask(DataInputStream _in, int _type) throws IOException {
+        if (TraceRecorder.TASK_RECORD == _type) {
+            readVarLong(_in);
+        } else if (TraceRecorder.NAMED_TASK_RECORD == _type) {
+            skipString(_in);
+        } else {
+            throw new IOException("unexpected record type " + _type + " in "
+                    + file);
+        }
+        readTask(_in);
+    }
+
+    /**
+     * @param _in
+     *            positioned after the uri of a task record
+     * @return
+     * @throws IOException
+     */
+    private static Task readTask(DataInputStream _in) throws IOException {
+        long latency = readVarLong(_in);
+        int size = (int) readVarLong(_in);
+        boolean ok = TraceRecorder.STATUS_OK == _in.readByte();
+        return new Task(latency, size, ok);
+    }
+
+    private static String readString(DataInputStream _in) throws IOException {
+        byte[] bytes = new byte[_in.readInt()];
+        _in.readFully(bytes);
+        return new String(bytes, TraceRecorder.UTF8);
+    }
+
+    private static void skipString(DataInputStream _in) throws IOException {
+        int length = _in.readInt();
+        if (_in.skipBytes(length) < length) {
+            throw new EOFException();
+        }
+    }
+
+    private static long readVarLong(DataInputStream _in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = _in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+}
@@ -21,69 +21,124 @@ package com.marklogic.developer.corb;
 import java.util.concurrent.Callable;
 
 import com.marklogic.xcc.Request;
+import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
 
-import com.marklogic.developer.SimpleLogger;
-
 /**
  * @author Michael Blakeley, michael.blakeley@marklogic.com
  *
  */
-public class Transform implements Callable<String> {
+public class Transform implements Callable<String>, Runnable {
 
     protected String inputUri;
 
     protected TaskFactory factory;
 
-    protected SimpleLogger logger;
-    
+    protected OutputSink sink;
+
+    private Session session;
+
+    private Request request;
+
     /**
      * @param _tf
      * @param _uri
      */
-    public Transform(TaskFactory _tf, String _uri, SimpleLogger _logger) {
+    public Transform(TaskFactory _tf, String _uri, OutputSink _sink) {
         factory = _tf;
         this.inputUri = _uri;
-        this.logger = _logger;
+        this.sink = _sink;
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see java.lang.Object#finalize()
+     * @see java.util.concurrent.Callable#call()
      */
-    protected void finalize() throws Throwable {
-        super.finalize();
+    public String call() throws Exception {
+        try {
+            return process(inputUri);
+        } finally {
+            close();
+        }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Run the process module for a uri. The indexed dispatch mode reuses one
+     * Transform for many uris, so this does not depend on {@link #getUri()}.
+     * Results are not cached: the sink reads them as they arrive. The
+     * session and request are kept for the next uri: XCC replaces a
+     * variable of the same name, and returns connections to its pool after
+     * each request.
      *
-     * @see java.util.concurrent.Callable#call()
+     * @param _uri
+     * @return the uri
+     * @throws Exception
      */
-    public String call() throws Exception {
-        // try to avoid thread starvation
-        Thread.yield();
-        Session session = null;
-        try {
-            String moduleUri = factory.getModuleUri();
+    public String process(String _uri) throws Exception {
+        if (null == request) {
             session = factory.newSession();
-            Request request = session.newModuleInvoke(moduleUri);
-            request.setNewStringVariable("URI", inputUri);
-            // try to avoid thread starvation
-            Thread.yield();
-            String response = session.submitRequest(request).asString();
-            session.close();
-            session = null;
-            logger.info(response);
-            return inputUri;
+            request = session.newModuleInvoke(factory.getModuleUri());
+            // stream the results to the sink
+            request.setOptions(factory.getRequestOptions());
+        }
+        request.setNewStringVariable("URI", _uri);
+        long startNanos = System.nanoTime();
+        long size = 0;
+        boolean ok = false;
+        ResultSequence result = null;
+        try {
+            result = session.submitRequest(request);
+            size = sink.write(_uri, new XccResult(result));
+            ok = true;
         } finally {
-            if (null != session) {
-                session.close();
-                session = null;
+            if (null != result) {
+                result.close();
             }
-            // try to avoid thread starvation
-            Thread.yield();
+            trace(_uri, startNanos, size, ok);
+            if (!ok) {
+                // start over with a fresh session
+                close();
+            }
+        }
+        return _uri;
+    }
+
+    /**
+     * Release the session, if any. A later call to {@link #process(String)}
+     * opens a new one.
+     */
+    public void close() {
+        Session s = session;
+        session = null;
+        request = null;
+        if (null != s) {
+            s.close();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        CompletionTracker tracker = factory.getCompletionTracker();
+        tracker.started();
+        try {
+            call();
+            tracker.completed();
+        } catch (Throwable t) {
+            tracker.failed(t);
+        }
+    }
+
+    private void trace(String _uri, long _startNanos, long _responseSize,
+            boolean _ok) {
+        TraceRecorder recorder = factory.getTraceRecorder();
+        if (null != recorder) {
+            recorder.recordTask(_uri, System.nanoTime() - _startNanos,
+                    _responseSize, _ok);
         }
     }
 
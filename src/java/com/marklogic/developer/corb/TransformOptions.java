@@ -18,6 +18,8 @@
  */
 package com.marklogic.developer.corb;
 
+import java.math.BigInteger;
+
 /**
  * @author Michael Blakeley, michael.blakeley@marklogic.com
  * @author Colleen Whitney, colleen.whitney@marklogic.com
@@ -43,6 +45,84 @@ public class TransformOptions {
 
     public static final String DEFAULT_OUTPUT_LOG_FILE_NAME_FORMAT = "output-%u-%g.log";
 
+    /** a fixed pool of platform threads, fed by a bounded queue */
+    public static final String EXECUTOR_PLATFORM = "platform";
+
+    /** one virtual thread per task, bounded by the thread count */
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+
+    /** a fork-join pool, with per-worker deques and work stealing */
+    public static final String EXECUTOR_WORK_STEALING = "workstealing";
+
+    /** queue a task object per uri */
+    public static final String DISPATCH_TASK = "task";
+
+    /** queue primitive positions, resolved to uris by long-lived workers */
+    public static final String DISPATCH_INDEX = "index";
+
+    /** write each result as one record */
+    public static final String OUTPUT_RECORDS_DOCUMENT = "document";
+
+    /** write each item of a result as a record of its own */
+    public static final String OUTPUT_RECORDS_ITEM = "item";
+
+    /** results are decoded, and written as text in the platform encoding */
+    public static final String OUTPUT_FORMAT_TEXT = "text";
+
+    /** result bytes are written as they are */
+    public static final String OUTPUT_FORMAT_RAW = "raw";
+
+    /** result bytes are written to a file per uri */
+    public static final String OUTPUT_FORMAT_FILES = "files";
+
+    /** key TAB payload lines are written to a file per key */
+    public static final String OUTPUT_FORMAT_PARTITIONED = "partitioned";
+
+    /** raw records start with an 8-byte length */
+    public static final String OUTPUT_FRAMING_LENGTH = "length";
+
+    /** raw records end with a delimiter */
+    public static final String OUTPUT_FRAMING_DELIMITER = "delimiter";
+
+    /** text output is written as it arrives */
+    public static final String OUTPUT_SORT_NONE = "none";
+
+    /** text output lines are sorted */
+    public static final String OUTPUT_SORT_LINE = "line";
+
+    /** text output lines are sorted by the text before the first tab */
+    public static final String OUTPUT_SORT_KEY = "key";
+
+    /** output is written as it arrives */
+    public static final String OUTPUT_AGGREGATE_NONE = "none";
+
+    /** output lines are counted per key */
+    public static final String OUTPUT_AGGREGATE_COUNT = "count";
+
+    /** output values are summed per key */
+    public static final String OUTPUT_AGGREGATE_SUM = "sum";
+
+    /** the least output value is kept per key */
+    public static final String OUTPUT_AGGREGATE_MIN = "min";
+
+    /** the greatest output value is kept per key */
+    public static final String OUTPUT_AGGREGATE_MAX = "max";
+
+    /** excluded uris are kept as 64-bit hashes */
+    public static final String EXCLUDE_HASH = "hash";
+
+    /** excluded uris are kept as hashes, and compared when they match */
+    public static final String EXCLUDE_VERIFIED = "verified";
+
+    /** excluded uris are kept in a bloom filter */
+    public static final String EXCLUDE_BLOOM = "bloom";
+
+    /** each request sees the database as it is when the request runs */
+    public static final String POINT_IN_TIME_NONE = "none";
+
+    /** every request sees the database as it was when the run started */
+    public static final String POINT_IN_TIME_START = "start";
+
     private String processModule = null;
 
     // Defaults for optional arguments
@@ -64,6 +144,68 @@ public class TransformOptions {
 
     private String outputLogFileNameFormat = DEFAULT_OUTPUT_LOG_FILE_NAME_FORMAT;
 
+    private String performanceReportFile = null;
+
+    private String traceFile = null;
+
+    private String executorMode = EXECUTOR_PLATFORM;
+
+    private String dispatchMode = DISPATCH_TASK;
+
+    private int queueSize = 100 * 1000;
+
+    private String outputRecords = OUTPUT_RECORDS_DOCUMENT;
+
+    private String outputFormat = OUTPUT_FORMAT_TEXT;
+
+    private String outputFraming = OUTPUT_FRAMING_LENGTH;
+
+    private String outputDelimiter = "\\n";
+
+    private String outputDirectory = "output";
+
+    private int outputMaxWrites = 64;
+
+    private int outputMaxOpen = 256;
+
+    private long outputRollBytes = 0;
+
+    private long outputRollRecords = 0;
+
+    private String outputManifest = null;
+
+    private String outputSort = OUTPUT_SORT_NONE;
+
+    private long outputSortMemory = 0;
+
+    private String outputSortDirectory = null;
+
+    private String outputAggregate = OUTPUT_AGGREGATE_NONE;
+
+    private int updateBatchSize = 1;
+
+    private String localTransform = null;
+
+    private int fetchBatchSize = 100;
+
+    private String urisFile = null;
+
+    private String urisExclude = null;
+
+    private String urisExcludeMode = EXCLUDE_HASH;
+
+    private double urisExcludeFalsePositiveRate = 0.001;
+
+    private String watermarkFile = null;
+
+    private long watermarkOverlap = 300;
+
+    private String resultCache = null;
+
+    private long resultCacheMaxBytes = 0;
+
+    private String pointInTime = POINT_IN_TIME_NONE;
+
     /**
      * @return
      */
@@ -182,7 +324,18 @@ public class TransformOptions {
      * @return
      */
     public int getQueueSize() {
-        return 100 * 1000;
+        return queueSize;
+    }
+
+    /**
+     * @param size
+     */
+    public void setQueueSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("queue size must be positive: "
+                    + size);
+        }
+        this.queueSize = size;
     }
     
     public String getOutputLogFileNameFormat() {
@@ -193,4 +346,967 @@ public class TransformOptions {
         this.outputLogFileNameFormat = pathFormat;
     }
 
+    /**
+     * @return the path for the end-of-run performance report, or null
+     */
+    public String getPerformanceReportFile() {
+        return performanceReportFile;
+    }
+
+    /**
+     * @param path
+     */
+    public void setPerformanceReportFile(String path) {
+        this.performanceReportFile = path;
+    }
+
+    /**
+     * @return the path to record a trace of the run to, or null
+     */
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    /**
+     * @param path
+     */
+    public void setTraceFile(String path) {
+        this.traceFile = path;
+    }
+
+    /**
+     * @return
+     */
+    public String getExecutorMode() {
+        return executorMode;
+    }
+
+    /**
+     * @param mode
+     */
+    public void setExecutorMode(String mode) {
+        if (!EXECUTOR_PLATFORM.equals(mode) && !EXECUTOR_VIRTUAL.equals(mode)
+                && !EXECUTOR_WORK_STEALING.equals(mode)) {
+            throw new IllegalArgumentException("unknown executor mode: "
+                    + mode);
+        }
+        this.executorMode = mode;
+    }
+
+    /**
+     * @return
+     */
+    public String getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * @param mode
+     */
+    public void setDispatchMode(String mode) {
+        if (!DISPATCH_TASK.equals(mode) && !DISPATCH_INDEX.equals(mode)) {
+            throw new IllegalArgumentException("unknown dispatch mode: "
+                    + mode);
+        }
+        this.dispatchMode = mode;
+    }
+
+    /**
+     * @return
+     */
+    public String getOutputRecords() {
+        return outputRecords;
+    }
+
+    /**
+     * @param records
+     */
+    public void setOutputRecords(String records) {
+        if (!OUTPUT_RECORDS_DOCUMENT.equals(records)
+                && !OUTPUT_RECORDS_ITEM.equals(records)) {
+            throw new IllegalArgumentException("unknown output records: "
+                    + records);
+        }
+        this.outputRecords = records;
+    }
+
+    /**
+     * @return
+     */
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * @param format
+     */
+    public void setOutputFormat(String format) {
+        if (!OUTPUT_FORMAT_TEXT.equals(format)
+                && !OUTPUT_FORMAT_RAW.equals(format)
+                && !OUTPUT_FORMAT_FILES.equals(format)
+                && !OUTPUT_FORMAT_PARTITIONED.equals(format)) {
+            throw new IllegalArgumentException("unknown output format: "
+                    + format);
+        }
+        this.outputFormat = format;
+    }
+
+    /**
+     * @return
+     */
+    public String getOutputFraming() {
+        return outputFraming;
+    }
+
+    /**
+     * @param framing
+     */
+    public void setOutputFraming(String framing) {
+        if (!OUTPUT_FRAMING_LENGTH.equals(framing)
+                && !OUTPUT_FRAMING_DELIMITER.equals(framing)) {
+            throw new IllegalArgumentException("unknown output framing: "
+                    + framing);
+        }
+        this.outputFraming = framing;
+    }
+
+    /**
+     * @return the raw record delimiter, with escapes like \n
+     */
+    public String getOutputDelimiter() {
+        return outputDelimiter;
+    }
+
+    /**
+     * @param delimiter
+     */
+    public void setOutputDelimiter(String delimiter) {
+        this.outputDelimiter = delimiter;
+    }
+
+    /**
+     * @return the directory for a file per uri
+     */
+    public String getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    /**
+     * @param directory
+     */
+    public void setOutputDirectory(String directory) {
+        this.outputDirectory = directory;
+    }
+
+    /**
+     * @return how many file writes may be in flight
+     */
+    public int getOutputMaxWrites() {
+        return outputMaxWrites;
+    }
+
+    /**
+     * @param count
+     */
+    public void setOutputMaxWrites(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException(
+                    "output writes must be positive: " + count);
+        }
+        this.outputMaxWrites = count;
+    }
+
+    /**
+     * @return how many partition files may be open at once
+     */
+    public int getOutputMaxOpen() {
+        return outputMaxOpen;
+    }
+
+    /**
+     * @param count
+     */
+    public void setOutputMaxOpen(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException(
+                    "open files must be positive: " + count);
+        }
+        this.outputMaxOpen = count;
+    }
+
+    /**
+     * @return the size at which text output rolls to a new part, or zero
+     */
+    public long getOutputRollBytes() {
+        return outputRollBytes;
+    }
+
+    /**
+     * @param bytes
+     */
+    public void setOutputRollBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("negative roll size: "
+                    + bytes);
+        }
+        this.outputRollBytes = bytes;
+    }
+
+    /**
+     * @return the record count at which text output rolls to a new part,
+     *         or zero
+     */
+    public long getOutputRollRecords() {
+        return outputRollRecords;
+    }
+
+    /**
+     * @param records
+     */
+    public void setOutputRollRecords(long records) {
+        if (records < 0) {
+            throw new IllegalArgumentException("negative roll count: "
+                    + records);
+        }
+        this.outputRollRecords = records;
+    }
+
+    /**
+     * @return true if text output rolls to new parts
+     */
+    public boolean isOutputRolling() {
+        return outputRollBytes > 0 || outputRollRecords > 0;
+    }
+
+    /**
+     * @return the path for the manifest of rolled parts, or null for the
+     *         default
+     */
+    public String getOutputManifest() {
+        return outputManifest;
+    }
+
+    /**
+     * @param path
+     */
+    public void setOutputManifest(String path) {
+        this.outputManifest = path;
+    }
+
+    /**
+     * @return
+     */
+    public String getOutputSort() {
+        return outputSort;
+    }
+
+    /**
+     * @param sort
+     */
+    public void setOutputSort(String sort) {
+        if (!OUTPUT_SORT_NONE.equals(sort) && !OUTPUT_SORT_LINE.equals(sort)
+                && !OUTPUT_SORT_KEY.equals(sort)) {
+            throw new IllegalArgumentException("unknown output sort: " + sort);
+        }
+        this.outputSort = sort;
+    }
+
+    /**
+     * @return true if text output is sorted
+     */
+    public boolean isOutputSorted() {
+        return !OUTPUT_SORT_NONE.equals(outputSort);
+    }
+
+    /**
+     * @return the memory budget for sorting output, in bytes: if not set, a
+     *         quarter of the maximum heap
+     */
+    public long getOutputSortMemory() {
+        if (outputSortMemory > 0) {
+            return outputSortMemory;
+        }
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * @param bytes
+     */
+    public void setOutputSortMemory(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("sort memory must be positive: "
+                    + bytes);
+        }
+        this.outputSortMemory = bytes;
+    }
+
+    /**
+     * @return the directory for sorted runs, or null for the system default
+     */
+    public String getOutputSortDirectory() {
+        return outputSortDirectory;
+    }
+
+    /**
+     * @param path
+     */
+    public void setOutputSortDirectory(String path) {
+        this.outputSortDirectory = path;
+    }
+
+    /**
+     * @return
+     */
+    public String getOutputAggregate() {
+        return outputAggregate;
+    }
+
+    /**
+     * @param function
+     */
+    public void setOutputAggregate(String function) {
+        if (!OUTPUT_AGGREGATE_NONE.equals(function)
+                && !OUTPUT_AGGREGATE_COUNT.equals(function)
+                && !OUTPUT_AGGREGATE_SUM.equals(function)
+                && !OUTPUT_AGGREGATE_MIN.equals(function)
+                && !OUTPUT_AGGREGATE_MAX.equals(function)) {
+            throw new IllegalArgumentException("unknown output aggregate: "
+                    + function);
+        }
+        this.outputAggregate = function;
+    }
+
+    /**
+     * @return true if output is folded into aggregates per key
+     */
+    public boolean isOutputAggregated() {
+        return !OUTPUT_AGGREGATE_NONE.equals(outputAggregate);
+    }
+
+    /**
+     * @return uris per update transaction: 1 means each uri commits on its
+     *         own
+     */
+    public int getUpdateBatchSize() {
+        return updateBatchSize;
+    }
+
+    /**
+     * @param size
+     */
+    public void setUpdateBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException(
+                    "update batch size must be positive: " + size);
+        }
+        this.updateBatchSize = size;
+    }
+
+    /**
+     * @return the class name of the {@link LocalTransform}, or null to run
+     *         the process module
+     */
+    public String getLocalTransform() {
+        return localTransform;
+    }
+
+    /**
+     * @param className
+     */
+    public void setLocalTransform(String className) {
+        this.localTransform = className;
+    }
+
+    /**
+     * @return documents per bulk fetch, for a local transform, or uris per
+     *         timestamp lookup, for the result cache
+     */
+    public int getFetchBatchSize() {
+        return fetchBatchSize;
+    }
+
+    /**
+     * @param size
+     */
+    public void setFetchBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException(
+                    "fetch batch size must be positive: " + size);
+        }
+        this.fetchBatchSize = size;
+    }
+
+    /**
+     * @return the path of a file listing the uris to process, or null to
+     *         run the uris module
+     */
+    public String getUrisFile() {
+        return urisFile;
+    }
+
+    /**
+     * @param path
+     */
+    public void setUrisFile(String path) {
+        this.urisFile = path;
+    }
+
+    /**
+     * @return the path of a file listing uris to leave out, or null
+     */
+    public String getUrisExclude() {
+        return urisExclude;
+    }
+
+    /**
+     * @param path
+     */
+    public void setUrisExclude(String path) {
+        this.urisExclude = path;
+    }
+
+    /**
+     * @return
+     */
+    public String getUrisExcludeMode() {
+        return urisExcludeMode;
+    }
+
+    /**
+     * @param mode
+     */
+    public void setUrisExcludeMode(String mode) {
+        if (!EXCLUDE_HASH.equals(mode) && !EXCLUDE_VERIFIED.equals(mode)
+                && !EXCLUDE_BLOOM.equals(mode)) {
+            throw new IllegalArgumentException("unknown exclude mode: "
+                    + mode);
+        }
+        this.urisExcludeMode = mode;
+    }
+
+    /**
+     * @return the false positive rate for a bloom filter exclusion set
+     */
+    public double getUrisExcludeFalsePositiveRate() {
+        return urisExcludeFalsePositiveRate;
+    }
+
+    /**
+     * @param rate
+     */
+    public void setUrisExcludeFalsePositiveRate(double rate) {
+        if (!(rate > 0 && rate < 1)) {
+            throw new IllegalArgumentException(
+                    "false positive rate must be between 0 and 1: " + rate);
+        }
+        this.urisExcludeFalsePositiveRate = rate;
+    }
+
+    /**
+     * @return the path of the watermark for delta runs, or null to process
+     *         everything
+     */
+    public String getWatermarkFile() {
+        return watermarkFile;
+    }
+
+    /**
+     * @param path
+     */
+    public void setWatermarkFile(String path) {
+        this.watermarkFile = path;
+    }
+
+    /**
+     * @return how far before the watermark a delta run starts, in seconds
+     */
+    public long getWatermarkOverlap() {
+        return watermarkOverlap;
+    }
+
+    /**
+     * @param seconds
+     */
+    public void setWatermarkOverlap(long seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("negative overlap: "
+                    + seconds);
+        }
+        this.watermarkOverlap = seconds;
+    }
+
+    /**
+     * @return the path of the result cache, or null for no cache
+     */
+    public String getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @param path
+     */
+    public void setResultCache(String path) {
+        this.resultCache = path;
+    }
+
+    /**
+     * @return the most the result cache may grow to, in bytes, or 0 for no
+     *         limit
+     */
+    public long getResultCacheMaxBytes() {
+        return resultCacheMaxBytes;
+    }
+
+    /**
+     * @param bytes
+     */
+    public void setResultCacheMaxBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("negative cache size: "
+                    + bytes);
+        }
+        this.resultCacheMaxBytes = bytes;
+    }
+
+    /**
+     * @return {@link #POINT_IN_TIME_NONE}, {@link #POINT_IN_TIME_START}, or a
+     *         server timestamp
+     */
+    public String getPointInTime() {
+        return pointInTime;
+    }
+
+    /**
+     * @param value
+     */
+    public void setPointInTime(String value) {
+        if (!POINT_IN_TIME_NONE.equals(value)
+                && !POINT_IN_TIME_START.equals(value)) {
+            try {
+                if (new BigInteger(value).signum() < 0) {
+                    throw new IllegalArgumentException(
+                            "negative point in time: " + value);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("unknown point in time: "
+                        + value);
+            }
+        }
+        this.pointInTime = value;
+    }
+
+    /**
+     * Builds options for a {@link Manager} embedded in another program.
+     * Each value is checked as it is set, as with the setters.
+     *
+     * <pre>
+     * TransformOptions options = new TransformOptions.Builder()
+     *         .processModule(&quot;transform.xqy&quot;).threadCount(16)
+     *         .build();
+     * </pre>
+     */
+    public static class Builder {
+
+        private TransformOptions options = new TransformOptions();
+
+        private TransformOptions options() {
+            if (null == options) {
+                throw new IllegalStateException("already built");
+            }
+            return options;
+        }
+
+        /**
+         * @param _count
+         * @return this builder
+         * @see TransformOptions#setThreadCount(int)
+         */
+        public Builder threadCount(int _count) {
+            options().setThreadCount(_count);
+            return this;
+        }
+
+        /**
+         * @param _modulesDatabase
+         * @return this builder
+         * @see TransformOptions#setModulesDatabase(String)
+         */
+        public Builder modulesDatabase(String _modulesDatabase) {
+            options().setModulesDatabase(_modulesDatabase);
+            return this;
+        }
+
+        /**
+         * @param _urisModule
+         * @return this builder
+         * @see TransformOptions#setUrisModule(String)
+         */
+        public Builder urisModule(String _urisModule) {
+            options().setUrisModule(_urisModule);
+            return this;
+        }
+
+        /**
+         * @param _processModule
+         * @return this builder
+         * @see TransformOptions#setProcessModule(String)
+         */
+        public Builder processModule(String _processModule) {
+            options().setProcessModule(_processModule);
+            return this;
+        }
+
+        /**
+         * @param _moduleRoot
+         * @return this builder
+         * @see TransformOptions#setModuleRoot(String)
+         */
+        public Builder moduleRoot(String _moduleRoot) {
+            options().setModuleRoot(_moduleRoot);
+            return this;
+        }
+
+        /**
+         * @param _doInstall
+         * @return this builder
+         * @see TransformOptions#setDoInstall(boolean)
+         */
+        public Builder doInstall(boolean _doInstall) {
+            options().setDoInstall(_doInstall);
+            return this;
+        }
+
+        /**
+         * @param _size
+         * @return this builder
+         * @see TransformOptions#setQueueSize(int)
+         */
+        public Builder queueSize(int _size) {
+            options().setQueueSize(_size);
+            return this;
+        }
+
+        /**
+         * @param _pathFormat
+         * @return this builder
+         * @see TransformOptions#setOutputLogFileNameFormat(String)
+         */
+        public Builder outputLogFileNameFormat(String _pathFormat) {
+            options().setOutputLogFileNameFormat(_pathFormat);
+            return this;
+        }
+
+        /**
+         * @param _path
+         * @return this builder
+         * @see TransformOptions#setPerformanceReportFile(String)
+         */
+        public Builder performanceReportFile(String _path) {
+            options().setPerformanceReportFile(_path);
+            return this;
+        }
+
+        /**
+         * @param _path
+         * @return this builder
+         * @see TransformOptions#setTraceFile(String)
+         */
+        public Builder traceFile(String _path) {
+            options().setTraceFile(_path);
+            return this;
+        }
+
+        /**
+         * @param _mode
+         * @return this builder
+         * @see TransformOptions#setExecutorMode(String)
+         */
+        public Builder executorMode(String _mode) {
+            options().setExecutorMode(_mode);
+            return this;
+        }
+
+        /**
+         * @param _mode
+         * @return this builder
+         * @see TransformOptions#setDispatchMode(String)
+         */
+        public Builder dispatchMode(String _mode) {
+            options().setDispatchMode(_mode);
+            return this;
+        }
+
+        /**
+         * @param _records
+         * @return this builder
+         * @see TransformOptions#setOutputRecords(String)
+         */
+        public Builder outputRecords(String _records) {
+            options().setOutputRecords(_records);
+            return this;
+        }
+
+        /**
+         * @param _format
+         * @return this builder
+         * @see TransformOptions#setOutputFormat(String)
+         */
+        public Builder outputFormat(String _format) {
+            options().setOutputFormat(_format);
+            return this;
+        }
+
+        /**
+         * @param _framing
+         * @return this builder
+         * @see TransformOptions#setOutputFraming(String)
+         */
+        public Builder outputFraming(String _framing) {
+            options().setOutputFraming(_framing);
+            return this;
+        }
+
+        /**
+         * @param _delimiter
+         * @return this builder
+         * @see TransformOptions#setOutputDelimiter(String)
+         */
+        public Builder outputDelimiter(String _delimiter) {
+            options().setOutputDelimiter(_delimiter);
+            return this;
+        }
+
+        /**
+         * @param _directory
+         * @return this builder
+         * @see TransformOptions#setOutputDirectory(String)
+         */
+        public Builder outputDirectory(String _directory) {
+            options().setOutputDirectory(_directory);
+            return this;
+        }
+
+        /**
+         * @param _count
+         * @return this builder
+         * @see TransformOptions#setOutputMaxWrites(int)
+         */
+        public Builder outputMaxWrites(int _count) {
+            options().setOutputMaxWrites(_count);
+            return this;
+        }
+
+        /**
+         * @param _count
+         * @return this builder
+         * @see TransformOptions#setOutputMaxOpen(int)
+         */
+        public Builder outputMaxOpen(int _count) {
+            options().setOutputMaxOpen(_count);
+            return this;
+        }
+
+        /**
+         * @param _bytes
+         * @return this builder
+         * @see TransformOptions#setOutputRollBytes(long)
+         */
+        public Builder outputRollBytes(long _bytes) {
+            options().setOutputRollBytes(_bytes);
+            return this;
+        }
+
+        /**
+         * @param _records
+         * @return this builder
+         * @see TransformOptions#setOutputRollRecords(long)
+         */
+        public Builder outputRollRecords(long _records) {
+            options().setOutputRollRecords(_records);
+            return this;
+        }
+
+        /**
+         * @param _path
+         * @return this builder
+         * @see TransformOptions#setOutputManifest(String)
+         */
+        public Builder outputManifest(String _path) {
+            options().setOutputManifest(_path);
+            return this;
+        }
+
+        /**
+         * @param _sort
+         * @return this builder
+         * @see TransformOptions#setOutputSort(String)
+         */
+        public Builder outputSort(String _sort) {
+            options().setOutputSort(_sort);
+            return this;
+        }
+
+        /**
+         * @param _bytes
+         * @return this builder
+         * @see TransformOptions#setOutputSortMemory(long)
+         */
+        public Builder outputSortMemory(long _bytes) {
+            options().setOutputSortMemory(_bytes);
+            return this;
+        }
+
+        /**
+         * @param _path
+         * @return this builder
+         * @see TransformOptions#setOutputSortDirectory(String)
+         */
+        public Builder outputSortDirectory(String _path) {
+            options().setOutputSortDirectory(_path);
+            return this;
+        }
+
+        /**
+         * @param _function
+         * @return this builder
+         * @see TransformOptions#setOutputAggregate(String)
+         */
+        public Builder outputAggregate(String _function) {
+            options().setOutputAggregate(_function);
+            return this;
+        }
+
+        /**
+         * @param _size
+         * @return this builder
+         * @see TransformOptions#setUpdateBatchSize(int)
+         */
+        public Builder updateBatchSize(int _size) {
+            options().setUpdateBatchSize(_size);
+            return this;
+        }
+
+        /**
+         * @param _className
+         * @return this builder
+         * @see TransformOptions#setLocalTransform(String)
+         */
+        public Builder localTransform(String _className) {
+            options().setLocalTransform(_className);
+            return this;
+        }
+
+        /**
+         * @param _size
+         * @return this builder
+         * @see TransformOptions#setFetchBatchSize(int)
+         */
+        public Builder fetchBatchSize(int _size) {
+            options().setFetchBatchSize(_size);
+            return this;
+        }
+
+        /**
+         * @param _path
+         * @return this builder
+         * @see TransformOptions#setUrisFile(String)
+         */
+        public Builder urisFile(String _path) {
+            options().setUrisFile(_path);
+            return this;
+        }
+
+        /**
+         * @param _path
+         * @return this builder
+         * @see TransformOptions#setUrisExclude(String)
+         */
+        public Builder urisExclude(String _path) {
+            options().setUrisExclude(_path);
+            return this;
+        }
+
+        /**
+         * @param _mode
+         * @return this builder
+         * @see TransformOptions#setUrisExcludeMode(String)
+         */
+        public Builder urisExcludeMode(String _mode) {
+            options().setUrisExcludeMode(_mode);
+            return this;
+        }
+
+        /**
+         * @param _rate
+         * @return this builder
+         * @see TransformOptions#setUrisExcludeFalsePositiveRate(double)
+         */
+        public Builder urisExcludeFalsePositiveRate(double _rate) {
+            options().setUrisExcludeFalsePositiveRate(_rate);
+            return this;
+        }
+
+        /**
+         * @param _path
+         * @return this builder
+         * @see TransformOptions#setWatermarkFile(String)
+         */
+        public Builder watermarkFile(String _path) {
+            options().setWatermarkFile(_path);
+            return this;
+        }
+
+        /**
+         * @param _seconds
+         * @return this builder
+         * @see TransformOptions#setWatermarkOverlap(long)
+         */
+        public Builder watermarkOverlap(long _seconds) {
+            options().setWatermarkOverlap(_seconds);
+            return this;
+        }
+
+        /**
+         * @param _path
+         * @return this builder
+         * @see TransformOptions#setResultCache(String)
+         */
+        public Builder resultCache(String _path) {
+            options().setResultCache(_path);
+            return this;
+        }
+
+        /**
+         * @param _bytes
+         * @return this builder
+         * @see TransformOptions#setResultCacheMaxBytes(long)
+         */
+        public Builder resultCacheMaxBytes(long _bytes) {
+            options().setResultCacheMaxBytes(_bytes);
+            return this;
+        }
+
+        /**
+         * @param _value
+         * @return this builder
+         * @see TransformOptions#setPointInTime(String)
+         */
+        public Builder pointInTime(String _value) {
+            options().setPointInTime(_value);
+            return this;
+        }
+
+        /**
+         * @return the options: the builder cannot be used again
+         */
+        public TransformOptions build() {
+            TransformOptions built = options();
+            if (null == built.getProcessModule()) {
+                throw new IllegalStateException("no process module");
+            }
+            options = null;
+            return built;
+        }
+    }
+
 }
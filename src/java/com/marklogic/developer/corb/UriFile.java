@@ -0,0 +1,225 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads uris from a local file, one per line in UTF-8, instead of from the
+ * uris module. Blank lines are skipped, and a trailing carriage return is
+ * dropped.
+ *
+ * The file is memory-mapped, so it is never loaded into the heap: the
+ * producer scans it for line starts, and the indexed dispatch mode queues
+ * those byte offsets, which the workers resolve to uris as they go. The
+ * file is mapped in segments of 1 GiB.
+ *
+ * Call {@link #close()} once no thread will read the file again.
+ */
+public class UriFile implements UriIndex {
+
+    private static final int SEGMENT_BITS = 30;
+
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private static final byte NEWLINE = '\n';
+
+    private static final byte RETURN = '\r';
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File file;
+
+    private long length;
+
+    private volatile MappedByteBuffer[] segments;
+
+    /** the scan window, for the producer only */
+    private byte[] chunk = new byte[64 * 1024];
+
+    private long chunkStart = 0;
+
+    private int chunkLength = 0;
+
+    /** where the producer's scan resumes */
+    private long cursor = 0;
+
+    /**
+     * @param _file
+     * @throws IOException
+     */
+    public UriFile(File _file) throws IOException {
+        file = _file;
+        RandomAccessFile raf = new RandomAccessFile(_file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            length = channel.size();
+            int count = (int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS);
+            MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        start, Math.min(SEGMENT_MASK + 1, length - start));
+            }
+            segments = mapped;
+        } finally {
+            // the mappings stay valid
+            raf.close();
+        }
+    }
+
+    /**
+     * Drop the mappings, so that later reads fail instead of keeping the
+     * file mapped. There is no public api to unmap a buffer, so the
+     * mappings are released when the buffers are garbage collected.
+     */
+    public void close() {
+        segments = null;
+    }
+
+    /**
+     * @return
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Scan the whole file, a block at a time, for a total that is needed up
+     * front. This does not move the scan of {@link #next()}.
+     *
+     * @return the number of uris in the file
+     */
+    public long count() {
+        long count = 0;
+        boolean content = false;
+        byte[] block = new byte[chunk.length];
+        for (MappedByteBuffer mapped : segments()) {
+            ByteBuffer segment = mapped.duplicate();
+            while (segment.hasRemaining()) {
+                int n = Math.min(block.length, segment.remaining());
+                segment.get(block, 0, n);
+                for (int i = 0; i < n; i++) {
+                    byte b = block[i];
+                    if (NEWLINE == b) {
+                        if (content) {
+                            count++;
+                        }
+                        content = false;
+                    } else if (RETURN != b) {
+                        content = true;
+                    }
+                }
+            }
+        }
+        return content ? count + 1 : count;
+    }
+
+    /**
+     * Scan for the next uri.
+     *
+     * @return its byte offset, or -1 at the end of the file
+     */
+    public long next() {
+        while (cursor < length) {
+            long start = cursor;
+            boolean content = false;
+            byte b;
+            while (cursor < length && NEWLINE != (b = byteAt(cursor))) {
+                if (RETURN != b) {
+                    content = true;
+                }
+                cursor++;
+            }
+            // skip the newline
+            cursor++;
+            if (content) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decode the uri at a byte offset from {@link #next()}. This is safe to
+     * call from any thread.
+     *
+     * @see com.marklogic.developer.corb.UriIndex#resolve(long)
+     */
+    public String resolve(long _position) {
+        if (_position < 0 || _position >= length) {
+            return null;
+        }
+        long end = _position;
+        while (end < length && NEWLINE != get(end)) {
+            end++;
+        }
+        if (end > _position && RETURN == get(end - 1)) {
+            end--;
+        }
+        byte[] bytes = new byte[(int) (end - _position)];
+        int i = 0;
+        long p = _position;
+        while (i < bytes.length) {
+            // copy a segment at a time
+            ByteBuffer segment = segments()[(int) (p >>> SEGMENT_BITS)]
+                    .duplicate();
+            segment.position((int) (p & SEGMENT_MASK));
+            int n = Math.min(bytes.length - i, segment.remaining());
+            segment.get(bytes, i, n);
+            i += n;
+            p += n;
+        }
+        return new String(bytes, UTF8);
+    }
+
+    private byte get(long _position) {
+        return segments()[(int) (_position >>> SEGMENT_BITS)]
+                .get((int) (_position & SEGMENT_MASK));
+    }
+
+    private MappedByteBuffer[] segments() {
+        MappedByteBuffer[] mapped = segments;
+        if (null == mapped) {
+            throw new IllegalStateException("closed: " + file);
+        }
+        return mapped;
+    }
+
+    private byte byteAt(long _position) {
+        long offset = _position - chunkStart;
+        if (offset < 0 || offset >= chunkLength) {
+            ByteBuffer segment = segments()[(int) (_position >>> SEGMENT_BITS)]
+                    .duplicate();
+            segment.position((int) (_position & SEGMENT_MASK));
+            chunkLength = Math.min(chunk.length, segment.remaining());
+            segment.get(chunk, 0, chunkLength);
+            chunkStart = _position;
+            offset = 0;
+        }
+        return chunk[(int) offset];
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * Holds the uris received from the uris module until they are queued. This
+ * may hold millions of items, so it tries to be memory-efficient: char
+ * primitives use less memory than strings, and arrays use less memory than
+ * lists or queues.
+ */
+public class UriStore implements UriIndex {
+
+    private char[][] uris;
+
+    /**
+     * @param _size
+     */
+    public UriStore(int _size) {
+        uris = new char[_size][];
+    }
+
+    /**
+     * @return
+     */
+    public int size() {
+        return uris.length;
+    }
+
+    /**
+     * @param _index
+     * @param _uri
+     *            may be null, for a uri that has already been queued
+     */
+    public void set(int _index, String _uri) {
+        uris[_index] = null == _uri ? null : _uri.toCharArray();
+    }
+
+    /**
+     * Fetch a uri, and release its storage.
+     *
+     * @param _index
+     * @return
+     */
+    public String remove(int _index) {
+        char[] uri = uris[_index];
+        if (null == uri) {
+            return null;
+        }
+        uris[_index] = null;
+        return new String(uri);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.UriIndex#resolve(long)
+     */
+    public String resolve(long _position) {
+        return remove((int) _position);
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs each task on its own virtual thread. There is no pool and no queue:
+ * concurrency is bounded by a semaphore, and {@link #execute(Runnable)}
+ * blocks the caller until a permit is available, like the
+ * CallerBlocksPolicy does for the platform pool.
+ *
+ * Virtual threads need JDK 21 or later, and corb still builds for older
+ * JVMs, so they are created by reflection: use
+ * {@link #newVirtualThreadFactory(String)} to find out whether they are
+ * available.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+    private Semaphore permits;
+
+    private ThreadFactory factory;
+
+    private volatile boolean shutdown = false;
+
+    private AtomicInteger active = new AtomicInteger();
+
+    private ConcurrentHashMap<Thread, Boolean> running = new ConcurrentHashMap<Thread, Boolean>();
+
+    private final Object termination = new Object();
+
+    /**
+     * @param _prefix
+     * @return a factory for virtual threads, or null if the JVM does not
+     *         support them
+     */
+    public static ThreadFactory newVirtualThreadFactory(String _prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class
+                    .forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class,
+                    long.class).invoke(builder, _prefix + "-",
+                    Long.valueOf(1));
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(
+                    builder);
+        } catch (Exception e) {
+            // before JDK 21
+            return null;
+        }
+    }
+
+    /**
+     * @param _concurrency
+     *            the maximum number of tasks in flight
+     * @param _factory
+     *            should create virtual threads
+     */
+    public VirtualThreadExecutor(int _concurrency, ThreadFactory _factory) {
+        permits = new Semaphore(_concurrency);
+        factory = _factory;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+     */
+    public void execute(final Runnable _task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("shut down");
+        }
+        try {
+            // block until a permit becomes available
+            permits.acquire();
+        } catch (InterruptedException e) {
+            // reset interrupt status and exit
+            Thread.interrupted();
+            // someone is trying to interrupt us
+            throw new RejectedExecutionException(e);
+        }
+        if (shutdown) {
+            permits.release();
+            throw new RejectedExecutionException("shut down");
+        }
+        active.incrementAndGet();
+        Thread t = factory.newThread(new Runnable() {
+            public void run() {
+                running.put(Thread.currentThread(), Boolean.TRUE);
+                try {
+                    _task.run();
+                } finally {
+                    running.remove(Thread.currentThread());
+                    active.decrementAndGet();
+                    permits.release();
+                    synchronized (termination) {
+                        termination.notifyAll();
+                    }
+                }
+            }
+        });
+        t.start();
+    }
+
+    /**
+     * @return the number of tasks in flight
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#shutdown()
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#shutdownNow()
+     */
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        for (Thread t : running.keySet()) {
+            t.interrupt();
+        }
+        // nothing is ever queued
+        return new ArrayList<Runnable>();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#isShutdown()
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#isTerminated()
+     */
+    public boolean isTerminated() {
+        return shutdown && 0 == active.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#awaitTermination(long,
+     * java.util.concurrent.TimeUnit)
+     */
+    public boolean awaitTermination(long _timeout, TimeUnit _unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + _unit.toNanos(_timeout);
+        synchronized (termination) {
+            while (!isTerminated()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(termination, remaining);
+            }
+        }
+        return true;
+    }
+
+}
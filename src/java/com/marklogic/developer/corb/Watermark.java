@@ -0,0 +1,163 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Remembers when the last successful run started, so that the next run can
+ * enumerate only the documents modified since then.
+ *
+ * The watermark is the server's clock when enumeration starts, not when
+ * the run ends: a document updated during the run is picked up again next
+ * time. A run at an earlier point in time starts from the time of that
+ * snapshot instead, as it sees none of the updates since. The next run also
+ * reaches back by an overlap, to cover updates that committed late or on a
+ * host with a slower clock. So a document may be processed twice, but no
+ * change is missed.
+ */
+public class Watermark {
+
+    /** asks the server for its clock */
+    public static final String TIME_QUERY = "xquery version \"1.0-ml\";\n"
+            + "fn:current-dateTime()\n";
+
+    /** asks the server for the clock at a point in time */
+    public static final String SNAPSHOT_TIME_QUERY = "xquery version \"1.0-ml\";\n"
+            + "declare variable $TIMESTAMP as xs:string external;\n"
+            + "xdmp:timestamp-to-wallclock(xs:unsignedLong($TIMESTAMP))\n";
+
+    private File file;
+
+    private long overlapSeconds;
+
+    private String start;
+
+    private DatatypeFactory datatypes;
+
+    /**
+     * @param _file
+     * @param _overlapSeconds
+     */
+    public Watermark(File _file, long _overlapSeconds) {
+        if (_overlapSeconds < 0) {
+            throw new IllegalArgumentException("negative overlap: "
+                    + _overlapSeconds);
+        }
+        file = _file;
+        overlapSeconds = _overlapSeconds;
+        try {
+            datatypes = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the dateTime to enumerate from, less the overlap, or an empty
+     *         string if there has been no successful run
+     * @throws IOException
+     */
+    public String getSince() throws IOException {
+        if (!file.exists()) {
+            return "";
+        }
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        String saved;
+        try {
+            saved = r.readLine();
+        } finally {
+            r.close();
+        }
+        if (null == saved || "".equals(saved.trim())) {
+            return "";
+        }
+        XMLGregorianCalendar since;
+        try {
+            since = datatypes.newXMLGregorianCalendar(saved.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("not a dateTime in " + file + ": " + saved);
+        }
+        since.add(datatypes.newDuration(false, 0, 0, 0, 0, 0,
+                (int) overlapSeconds));
+        return since.toXMLFormat();
+    }
+
+    /**
+     * @param _dateTime
+     *            the server clock as enumeration starts, or at the point in
+     *            time that the run sees
+     */
+    public void setStart(String _dateTime) {
+        // check it now, rather than after the run
+        datatypes.newXMLGregorianCalendar(_dateTime);
+        start = _dateTime;
+    }
+
+    /**
+     * @return the server clock as enumeration started, or null
+     */
+    public String getStart() {
+        return start;
+    }
+
+    /**
+     * Save the start of this run, for the next one. Call only after a
+     * successful run. The file is replaced by a rename, so a crash leaves
+     * either the old watermark or the new one.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (null == start) {
+            throw new IllegalStateException("no start time");
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileWriter w = new FileWriter(tmp);
+        try {
+            w.write(start);
+            w.write("\n");
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // some platforms will not rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules tasks on a {@link ForkJoinPool} in async mode, so that each
+ * worker has its own deque and idle workers steal from busy ones, instead of
+ * every submission and every take contending for the lock of one shared
+ * queue.
+ *
+ * The producer hands tasks over in batches: a batch is a single submission,
+ * and the worker that picks it up forks its tasks onto its own deque, where
+ * the other workers can steal them. A partial batch is submitted as soon as
+ * the pool is running low on waiting tasks, so a slow producer never starves
+ * the workers.
+ *
+ * Admission is bounded by a semaphore: {@link #execute(Runnable)} blocks the
+ * caller while the queue is full, like the CallerBlocksPolicy does for the
+ * platform pool.
+ */
+public class WorkStealingExecutor extends AbstractExecutorService {
+
+    public static final int BATCH_SIZE = 64;
+
+    private ForkJoinPool pool;
+
+    private int parallelism;
+
+    private Semaphore admission;
+
+    private List<Runnable> batch = new ArrayList<Runnable>(BATCH_SIZE);
+
+    private volatile boolean shutdown = false;
+
+    /** handed to the pool, but not yet started */
+    private AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param _parallelism
+     *            the number of worker threads
+     * @param _queueSize
+     *            the number of tasks that may wait for a worker
+     * @param _factory
+     */
+    public WorkStealingExecutor(int _parallelism, int _queueSize,
+            ForkJoinPool.ForkJoinWorkerThreadFactory _factory) {
+        parallelism = _parallelism;
+        admission = new Semaphore(_queueSize + _parallelism);
+        // async mode: local tasks are taken in FIFO order, like a queue
+        pool = new ForkJoinPool(_parallelism, _factory, null, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+     */
+    public void execute(Runnable _task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("shut down");
+        }
+        try {
+            // block until space becomes available
+            admission.acquire();
+        } catch (InterruptedException e) {
+            // reset interrupt status and exit
+            Thread.interrupted();
+            // someone is trying to interrupt us
+            throw new RejectedExecutionException(e);
+        }
+        if (shutdown) {
+            admission.release();
+            throw new RejectedExecutionException("shut down");
+        }
+        synchronized (this) {
+            batch.add(_task);
+            if (batch.size() >= BATCH_SIZE || waiting.get() < parallelism) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Caller must hold the lock.
+     */
+    private void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        waiting.addAndGet(batch.size());
+        pool.execute(new Batch(batch));
+        batch = new ArrayList<Runnable>(BATCH_SIZE);
+    }
+
+    /**
+     * Forks its tasks onto the deque of the worker that runs it.
+     */
+    private class Batch extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private List<Runnable> tasks;
+
+        Batch(List<Runnable> _tasks) {
+            tasks = _tasks;
+        }
+
+        protected void compute() {
+            int size = tasks.size();
+            for (int i = 1; i < size; i++) {
+                new Task(tasks.get(i)).fork();
+            }
+            // no need to queue the first one
+            new Task(tasks.get(0)).compute();
+            tasks = null;
+        }
+    }
+
+    private class Task extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private Runnable task;
+
+        Task(Runnable _task) {
+            task = _task;
+        }
+
+        protected void compute() {
+            waiting.decrementAndGet();
+            try {
+                task.run();
+            } finally {
+                admission.release();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#shutdown()
+     */
+    public void shutdown() {
+        synchronized (this) {
+            flush();
+            shutdown = true;
+        }
+        pool.shutdown();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#shutdownNow()
+     */
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pending;
+        synchronized (this) {
+            shutdown = true;
+            pending = batch;
+            batch = new ArrayList<Runnable>();
+        }
+        pool.shutdownNow();
+        // wake a producer that is waiting for space
+        admission.release(parallelism + 1);
+        return pending;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#isShutdown()
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#isTerminated()
+     */
+    public boolean isTerminated() {
+        return pool.isTerminated();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#awaitTermination(long,
+     * java.util.concurrent.TimeUnit)
+     */
+    public boolean awaitTermination(long _timeout, TimeUnit _unit)
+            throws InterruptedException {
+        return pool.awaitTermination(_timeout, _unit);
+    }
+
+}
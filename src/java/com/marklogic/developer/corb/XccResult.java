@@ -0,0 +1,84 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.InputStream;
+import java.io.Reader;
+
+import com.marklogic.xcc.ResultItem;
+import com.marklogic.xcc.ResultSequence;
+
+/**
+ * Presents a result sequence from the server as an {@link OutputResult}.
+ * Closing the sequence is left to the caller.
+ */
+class XccResult implements OutputResult {
+
+    private ResultSequence sequence;
+
+    /**
+     * @param _sequence
+     */
+    XccResult(ResultSequence _sequence) {
+        sequence = _sequence;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.OutputResult#hasNext()
+     */
+    public boolean hasNext() {
+        return sequence.hasNext();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.marklogic.developer.corb.OutputResult#next()
+     */
+    public OutputItem next() {
+        return new Item(sequence.next());
+    }
+
+    /**
+     * One item from the server.
+     */
+    private static class Item implements OutputItem {
+
+        private ResultItem item;
+
+        Item(ResultItem _item) {
+            item = _item;
+        }
+
+        public Reader asReader() {
+            return item.asReader();
+        }
+
+        public InputStream asInputStream() {
+            return item.asInputStream();
+        }
+
+        public String asString() {
+            return item.asString();
+        }
+    }
+
+}
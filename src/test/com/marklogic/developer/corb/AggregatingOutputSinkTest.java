@@ -0,0 +1,209 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Folding lines into the {@link AggregatingOutputSink} stripes.
+ */
+public class AggregatingOutputSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void counts() throws IOException {
+        File output = folder.newFile();
+        AggregatingOutputSink sink = new AggregatingOutputSink(output,
+                AggregatingOutputSink.FUNCTION_COUNT);
+        sink.write("/1.xml", LocalResults.newSequence(new String[] {
+                "b\tignored\r\na\nb", "a" }));
+        sink.write("/2.xml", LocalResults.newSequence("c\r\n\na\n"));
+        assertEquals(3, sink.size());
+        sink.close();
+        assertEquals(lines("a\t3", "b\t2", "c\t1"), read(output));
+    }
+
+    @Test
+    public void minAndMax() throws IOException {
+        File min = folder.newFile();
+        File max = folder.newFile();
+        AggregatingOutputSink minSink = new AggregatingOutputSink(min,
+                AggregatingOutputSink.FUNCTION_MIN);
+        AggregatingOutputSink maxSink = new AggregatingOutputSink(max,
+                AggregatingOutputSink.FUNCTION_MAX);
+        String[] values = new String[] { "a\t 5 ", "b\t-2", "a\t-1.5",
+                "b\t7", "a\t3" };
+        for (String value : values) {
+            minSink.write("/1.xml", LocalResults.newSequence(value));
+            maxSink.write("/1.xml", LocalResults.newSequence(value));
+        }
+        minSink.close();
+        maxSink.close();
+        // a switched to doubles with its fraction
+        assertEquals(lines("a\t-1.5", "b\t-2"), read(min));
+        assertEquals(lines("a\t5.0", "b\t7"), read(max));
+    }
+
+    @Test
+    public void sumSwitchesToDoubleOnOverflow() throws IOException {
+        File output = folder.newFile();
+        AggregatingOutputSink sink = new AggregatingOutputSink(output,
+                AggregatingOutputSink.FUNCTION_SUM);
+        for (int i = 0; i < 11; i++) {
+            sink.write("/" + i + ".xml", LocalResults
+                    .newSequence("big\t900000000000000000\nsmall\t1"));
+        }
+        sink.close();
+        assertEquals(lines("big\t" + Double.toString(9.9e18), "small\t11"),
+                read(output));
+    }
+
+    /**
+     * Every key has the same String hash code, so they all land in one
+     * stripe and probe past each other, across several rounds of growth.
+     */
+    @Test
+    public void collidingKeys() throws IOException {
+        List<String> keys = new ArrayList<String>();
+        collidingKeys("", 9, keys);
+        int hash = keys.get(0).hashCode();
+        for (String key : keys) {
+            assertEquals(hash, key.hashCode());
+        }
+        File output = folder.newFile();
+        AggregatingOutputSink sink = new AggregatingOutputSink(output,
+                AggregatingOutputSink.FUNCTION_SUM);
+        for (int round = 1; round <= 3; round++) {
+            for (int i = 0; i < keys.size(); i++) {
+                sink.write("/" + i + ".xml", LocalResults.newSequence(keys
+                        .get(i)
+                        + "\t" + (round * i)));
+            }
+        }
+        assertEquals(keys.size(), sink.size());
+        sink.close();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < keys.size(); i++) {
+            expected.add(keys.get(i) + "\t" + (6 * i));
+        }
+        Collections.sort(expected);
+        assertEquals(expected, read(output));
+    }
+
+    @Test
+    public void growsToManyKeys() throws IOException {
+        int count = 100000;
+        File output = folder.newFile();
+        AggregatingOutputSink sink = new AggregatingOutputSink(output,
+                AggregatingOutputSink.FUNCTION_COUNT);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            // the keys of each result span more than one buffer
+            sb.append(i).append('\n').append(count - 1 - i).append('\n');
+            if (0 == (i + 1) % 10000) {
+                sink.write("/" + i + ".xml", LocalResults.newSequence(sb
+                        .toString()));
+                sb.setLength(0);
+            }
+        }
+        assertEquals(count, sink.size());
+        sink.close();
+        List<String> actual = read(output);
+        assertEquals(count, actual.size());
+        for (String line : actual) {
+            assertEquals("\t2", line.substring(line.indexOf('\t')));
+        }
+    }
+
+    @Test
+    public void lineWithoutKeyFails() throws IOException {
+        AggregatingOutputSink sink = new AggregatingOutputSink(folder
+                .newFile(), AggregatingOutputSink.FUNCTION_SUM);
+        try {
+            sink.write("/1.xml", LocalResults.newSequence("\t1"));
+            fail("expected an exception");
+        } catch (IOException e) {
+            assertEquals("no aggregate key in output for /1.xml", e
+                    .getMessage());
+        }
+        try {
+            sink.write("/2.xml", LocalResults.newSequence("a\tone"));
+            fail("expected an exception");
+        } catch (IOException e) {
+            assertEquals("not a number in output for /2.xml: one", e
+                    .getMessage());
+        }
+        sink.close();
+    }
+
+    /**
+     * "Aa" and "BB" have the same hash code, and so do any strings made by
+     * joining the same number of them.
+     */
+    private static void collidingKeys(String _prefix, int _pairs,
+            List<String> _keys) {
+        if (0 == _pairs) {
+            _keys.add(_prefix);
+            return;
+        }
+        collidingKeys(_prefix + "Aa", _pairs - 1, _keys);
+        collidingKeys(_prefix + "BB", _pairs - 1, _keys);
+    }
+
+    private static List<String> lines(String... _lines) {
+        List<String> list = new ArrayList<String>();
+        for (String line : _lines) {
+            list.add(line);
+        }
+        return list;
+    }
+
+    private static List<String> read(File _file) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(_file), Charset.defaultCharset()));
+        try {
+            List<String> list = new ArrayList<String>();
+            String line;
+            while (null != (line = r.readLine())) {
+                list.add(line);
+            }
+            return list;
+        } finally {
+            r.close();
+        }
+    }
+
+}
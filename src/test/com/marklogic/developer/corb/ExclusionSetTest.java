@@ -0,0 +1,147 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Lookups in {@link HashExclusionSet} and {@link BloomExclusionSet}: an
+ * excluded uri must always be found.
+ */
+public class ExclusionSetTest {
+
+    private static final int COUNT = 50000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hashHasNoFalseNegatives() throws IOException {
+        UriFile file = newExclusionFile();
+        HashExclusionSet set = new HashExclusionSet(file, false);
+        // duplicates are kept once
+        assertEquals(COUNT, set.size());
+        assertContainsAll(set);
+        assertContainsNone(set);
+        file.close();
+    }
+
+    @Test
+    public void verifiedHasNoFalseNegatives() throws IOException {
+        UriFile file = newExclusionFile();
+        HashExclusionSet set = new HashExclusionSet(file, true);
+        assertEquals(COUNT, set.size());
+        assertContainsAll(set);
+        assertContainsNone(set);
+        file.close();
+    }
+
+    @Test
+    public void bloomHasNoFalseNegatives() throws IOException {
+        UriFile file = newExclusionFile();
+        double rate = 0.01;
+        BloomExclusionSet set = new BloomExclusionSet(file, rate);
+        // duplicates are counted, but do not change the filter
+        assertEquals(COUNT + COUNT / 10, set.size());
+        assertEquals(0, set.getBitCount() % 64);
+        assertTrue(set.getHashCount() > 1);
+        assertContainsAll(set);
+        int falsePositives = 0;
+        for (int i = 0; i < COUNT; i++) {
+            if (set.contains("/other/" + i + ".xml")) {
+                falsePositives++;
+            }
+        }
+        // sized for the count with duplicates, so well within the rate
+        assertTrue("false positives: " + falsePositives,
+                falsePositives < 2 * rate * COUNT);
+        file.close();
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        File empty = folder.newFile();
+        assertFalse(new HashExclusionSet(new UriFile(empty), true)
+                .contains("/a.xml"));
+        assertFalse(new HashExclusionSet(new UriFile(empty), false)
+                .contains("/a.xml"));
+        assertFalse(new BloomExclusionSet(new UriFile(empty), 0.01)
+                .contains("/a.xml"));
+    }
+
+    @Test
+    public void hashIsNeverEmpty() {
+        assertTrue(0 != HashExclusionSet.hash(""));
+        assertTrue(0 != HashExclusionSet.hash("/a.xml"));
+    }
+
+    /**
+     * @return a file of {@link #COUNT} uris, with every tenth one repeated
+     *         and some blank lines
+     */
+    private UriFile newExclusionFile() throws IOException {
+        File file = folder.newFile();
+        Writer w = new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8");
+        try {
+            for (int i = 0; i < COUNT; i++) {
+                w.write(uri(i));
+                w.write(0 == i % 100 ? "\r\n\n" : "\n");
+            }
+            for (int i = 0; i < COUNT; i += 10) {
+                w.write(uri(i));
+                w.write("\n");
+            }
+        } finally {
+            w.close();
+        }
+        return new UriFile(file);
+    }
+
+    private static String uri(int _i) {
+        // some non-ASCII, so the hash sees more than bytes
+        return "/excluded/\u00e9t\u00e9-" + _i + ".xml";
+    }
+
+    private static void assertContainsAll(ExclusionSet _set) {
+        for (int i = 0; i < COUNT; i++) {
+            assertTrue(uri(i), _set.contains(uri(i)));
+        }
+    }
+
+    private static void assertContainsNone(ExclusionSet _set) {
+        for (int i = COUNT; i < 2 * COUNT; i++) {
+            assertFalse(uri(i), _set.contains(uri(i)));
+        }
+        assertFalse(_set.contains(""));
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * The {@link IndexQueue} ring buffer.
+ */
+public class IndexQueueTest {
+
+    @Test
+    public void wrapsAround() throws InterruptedException {
+        IndexQueue queue = new IndexQueue(5);
+        long[] buffer = new long[5];
+        long next = 0;
+        long expected = 0;
+        // put and take in uneven steps, so the ends wrap at every offset
+        for (int round = 0; round < 1000; round++) {
+            int puts = 1 + round % (5 - queue.size());
+            for (int i = 0; i < puts; i++) {
+                assertTrue(queue.put(next++));
+            }
+            int n = queue.take(buffer);
+            assertTrue(n > 0);
+            for (int i = 0; i < n; i++) {
+                assertEquals(expected++, buffer[i]);
+            }
+            assertEquals(next - expected, queue.size());
+        }
+        queue.close();
+        int n;
+        while ((n = queue.take(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                assertEquals(expected++, buffer[i]);
+            }
+        }
+        assertEquals(next, expected);
+    }
+
+    @Test
+    public void takesAtMostHalf() throws InterruptedException {
+        IndexQueue queue = new IndexQueue(16);
+        for (int i = 0; i < 10; i++) {
+            queue.put(i);
+        }
+        long[] buffer = new long[100];
+        assertEquals(5, queue.take(buffer));
+        assertEquals(3, queue.take(buffer));
+        assertEquals(1, queue.take(buffer));
+        assertEquals(1, queue.take(buffer));
+        assertEquals(9, buffer[0]);
+        // and no more than the buffer holds
+        for (int i = 0; i < 10; i++) {
+            queue.put(i);
+        }
+        assertEquals(2, queue.take(new long[2]));
+    }
+
+    @Test
+    public void closeDrains() throws InterruptedException {
+        IndexQueue queue = new IndexQueue(4);
+        queue.put(7);
+        queue.put(8);
+        queue.close();
+        long[] buffer = new long[4];
+        assertEquals(1, queue.take(buffer));
+        assertEquals(7, buffer[0]);
+        assertEquals(1, queue.take(buffer));
+        assertEquals(8, buffer[0]);
+        assertEquals(0, queue.take(buffer));
+        try {
+            queue.put(9);
+            fail("expected an exception");
+        } catch (IllegalStateException e) {
+            // closed
+        }
+    }
+
+    @Test
+    public void abortReleasesProducer() throws InterruptedException {
+        final IndexQueue queue = new IndexQueue(1);
+        queue.put(1);
+        final AtomicReference<Boolean> result = new AtomicReference<Boolean>();
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    result.set(Boolean.valueOf(queue.put(2)));
+                } catch (InterruptedException e) {
+                    // leave the result unset
+                }
+            }
+        };
+        producer.start();
+        // the queue is full, so the producer waits
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        assertNull(result.get());
+        queue.abort();
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+        assertEquals(Boolean.FALSE, result.get());
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.take(new long[1]));
+        assertFalse(queue.put(3));
+    }
+
+    @Test
+    public void rejectsBadArguments() throws InterruptedException {
+        try {
+            new IndexQueue(0);
+            fail("expected an exception");
+        } catch (IllegalArgumentException e) {
+            // no room
+        }
+        try {
+            new IndexQueue(1).put(-1);
+            fail("expected an exception");
+        } catch (IllegalArgumentException e) {
+            // not a position
+        }
+    }
+
+    /**
+     * Workers on a small ring see every position once, each in the order
+     * it was put.
+     */
+    @Test
+    public void concurrentWorkers() throws InterruptedException {
+        final int count = 200000;
+        final IndexQueue queue = new IndexQueue(7);
+        final BitSet seen = new BitSet(count);
+        final AtomicBoolean outOfOrder = new AtomicBoolean();
+        Thread[] workers = new Thread[4];
+        for (int w = 0; w < workers.length; w++) {
+            workers[w] = new Thread() {
+                public void run() {
+                    long[] buffer = new long[3];
+                    long last = -1;
+                    try {
+                        int n;
+                        while ((n = queue.take(buffer)) > 0) {
+                            for (int i = 0; i < n; i++) {
+                                if (buffer[i] <= last) {
+                                    outOfOrder.set(true);
+                                }
+                                last = buffer[i];
+                                synchronized (seen) {
+                                    seen.set((int) buffer[i]);
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        outOfOrder.set(true);
+                    }
+                }
+            };
+            workers[w].start();
+        }
+        for (int i = 0; i < count; i++) {
+            assertTrue(queue.put(i));
+        }
+        queue.close();
+        for (Thread worker : workers) {
+            worker.join(60000);
+            assertFalse(worker.isAlive());
+        }
+        assertFalse(outOfOrder.get());
+        assertEquals(count, seen.cardinality());
+    }
+
+}
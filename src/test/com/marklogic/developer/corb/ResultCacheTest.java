@@ -0,0 +1,329 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round trips through the {@link ResultCache} log.
+ */
+public class ResultCacheTest {
+
+    private static final String FINGERPRINT = "module=/test.xqy\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putThenGet() throws IOException {
+        ResultCache cache = new ResultCache(folder.newFile(), 0, FINGERPRINT);
+        put(cache, "/a.xml", 1, "one", "two");
+        put(cache, "/b.xml", 2);
+        assertArrayEquals(new String[] { "one", "two" }, cache.get("/a.xml",
+                1));
+        assertArrayEquals(new String[0], cache.get("/b.xml", 2));
+        // another timestamp, or another uri
+        assertNull(cache.get("/a.xml", 2));
+        assertNull(cache.get("/c.xml", 1));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        cache.close();
+    }
+
+    @Test
+    public void newerRecordReplaces() throws IOException {
+        File file = folder.newFile();
+        ResultCache cache = new ResultCache(file, 0, FINGERPRINT);
+        put(cache, "/a.xml", 1, "old");
+        put(cache, "/a.xml", 2, "new");
+        assertEquals(1, cache.size());
+        assertNull(cache.get("/a.xml", 1));
+        cache.close();
+
+        cache = new ResultCache(file, 0, FINGERPRINT);
+        assertEquals(1, cache.size());
+        assertArrayEquals(new String[] { "new" }, cache.get("/a.xml", 2));
+        cache.close();
+    }
+
+    @Test
+    public void reopenCutsTornTail() throws IOException {
+        File file = folder.newFile();
+        ResultCache cache = new ResultCache(file, 0, FINGERPRINT);
+        put(cache, "/a.xml", 1, "kept");
+        cache.close();
+        long intact = file.length();
+        cache = new ResultCache(file, 0, FINGERPRINT);
+        put(cache, "/b.xml", 1, "torn by a crash");
+        cache.close();
+
+        // cut the second record short
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(file.length() - 3);
+        } finally {
+            raf.close();
+        }
+        cache = new ResultCache(file, 0, FINGERPRINT);
+        assertEquals(intact, file.length());
+        assertEquals(1, cache.size());
+        assertArrayEquals(new String[] { "kept" }, cache.get("/a.xml", 1));
+        assertNull(cache.get("/b.xml", 1));
+        // and the log goes on from the cut
+        put(cache, "/b.xml", 2, "again");
+        cache.close();
+        cache = new ResultCache(file, 0, FINGERPRINT);
+        assertArrayEquals(new String[] { "again" }, cache.get("/b.xml", 2));
+        cache.close();
+    }
+
+    @Test
+    public void corruptRecordIsCut() throws IOException {
+        File file = folder.newFile();
+        ResultCache cache = new ResultCache(file, 0, FINGERPRINT);
+        put(cache, "/a.xml", 1, "kept");
+        cache.close();
+        long intact = file.length();
+        cache = new ResultCache(file, 0, FINGERPRINT);
+        put(cache, "/b.xml", 1, "flipped");
+        cache.close();
+
+        // a flipped byte in the last item fails the CRC
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(file.length() - 1);
+            int b = raf.read();
+            raf.seek(file.length() - 1);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        cache = new ResultCache(file, 0, FINGERPRINT);
+        assertEquals(intact, file.length());
+        assertNull(cache.get("/b.xml", 1));
+        assertArrayEquals(new String[] { "kept" }, cache.get("/a.xml", 1));
+        cache.close();
+    }
+
+    @Test
+    public void otherFingerprintDiscards() throws IOException {
+        File file = folder.newFile();
+        ResultCache cache = new ResultCache(file, 0, FINGERPRINT);
+        put(cache, "/a.xml", 1, "one");
+        cache.close();
+
+        cache = new ResultCache(file, 0, "module=/other.xqy\n");
+        assertEquals(0, cache.size());
+        assertNull(cache.get("/a.xml", 1));
+        put(cache, "/a.xml", 1, "other");
+        cache.close();
+        cache = new ResultCache(file, 0, "module=/other.xqy\n");
+        assertArrayEquals(new String[] { "other" }, cache.get("/a.xml", 1));
+        cache.close();
+    }
+
+    @Test
+    public void compactsWhenMostlyGarbage() throws IOException {
+        File file = folder.newFile();
+        ResultCache cache = new ResultCache(file, 0, FINGERPRINT);
+        String item = text(100 * 1024);
+        for (int i = 0; i < 30; i++) {
+            put(cache, "/a.xml", i, item + i);
+        }
+        put(cache, "/b.xml", 1, "small");
+        assertTrue(file.length() > 2 * 1024 * 1024);
+        cache.close();
+
+        // only the live records are left
+        assertTrue(file.length() < 110 * 1024);
+        cache = new ResultCache(file, 0, FINGERPRINT);
+        assertEquals(2, cache.size());
+        assertArrayEquals(new String[] { item + 29 }, cache.get("/a.xml", 29));
+        assertArrayEquals(new String[] { "small" }, cache.get("/b.xml", 1));
+        cache.close();
+    }
+
+    @Test
+    public void compactsWhenFull() throws IOException {
+        File file = folder.newFile();
+        long limit = 400 * 1024;
+        ResultCache cache = new ResultCache(file, limit, FINGERPRINT);
+        String item = text(50 * 1024);
+        // each uri is replaced several times over the limit
+        for (int version = 0; version < 10; version++) {
+            for (int i = 0; i < 3; i++) {
+                put(cache, "/" + i + ".xml", version, item + version);
+                assertTrue(file.length() <= limit);
+            }
+        }
+        assertFalse(cache.isFull());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(new String[] { item + 9 }, cache.get("/" + i
+                    + ".xml", 9));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void fullOfLiveRecords() throws IOException {
+        File file = folder.newFile();
+        long limit = 200 * 1024;
+        ResultCache cache = new ResultCache(file, limit, FINGERPRINT);
+        String item = text(50 * 1024);
+        for (int i = 0; i < 5; i++) {
+            put(cache, "/" + i + ".xml", 1, item);
+        }
+        assertTrue(cache.isFull());
+        assertTrue(file.length() <= limit);
+        assertEquals(3, cache.size());
+        assertArrayEquals(new String[] { item }, cache.get("/0.xml", 1));
+        assertNull(cache.get("/4.xml", 1));
+        // and a record larger than the whole cache is dropped as it grows
+        put(cache, "/big.xml", 1, text((int) limit), "more");
+        assertNull(cache.get("/big.xml", 1));
+        cache.close();
+    }
+
+    @Test
+    public void sameHashKeepsBothUris() throws IOException {
+        File file = folder.newFile();
+        ResultCache cache = new CollidingCache(file);
+        put(cache, "/a.xml", 1, "a");
+        put(cache, "/b.xml", 1, "b");
+        put(cache, "/c.xml", 1, "c");
+        assertEquals(3, cache.size());
+        assertArrayEquals(new String[] { "a" }, cache.get("/a.xml", 1));
+        assertArrayEquals(new String[] { "b" }, cache.get("/b.xml", 1));
+        assertArrayEquals(new String[] { "c" }, cache.get("/c.xml", 1));
+        // replacing one leaves the others
+        put(cache, "/b.xml", 2, "b2");
+        assertEquals(3, cache.size());
+        assertArrayEquals(new String[] { "a" }, cache.get("/a.xml", 1));
+        assertArrayEquals(new String[] { "b2" }, cache.get("/b.xml", 2));
+        assertNull(cache.get("/d.xml", 1));
+        cache.close();
+
+        cache = new CollidingCache(file);
+        assertEquals(3, cache.size());
+        assertArrayEquals(new String[] { "b2" }, cache.get("/b.xml", 2));
+        assertArrayEquals(new String[] { "c" }, cache.get("/c.xml", 1));
+        cache.close();
+    }
+
+    @Test
+    public void readsDuringCompaction() throws Exception {
+        File file = folder.newFile();
+        final ResultCache cache = new ResultCache(file, 300 * 1024,
+                FINGERPRINT);
+        final String item = text(20 * 1024);
+        put(cache, "/stable.xml", 1, item);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final boolean[] done = new boolean[1];
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread() {
+                public void run() {
+                    try {
+                        while (!isDone()) {
+                            String[] items = cache.get("/stable.xml", 1);
+                            // a miss is allowed while the log is replaced
+                            if (null != items && !item.equals(items[0])) {
+                                throw new AssertionError("wrong record");
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+
+                private boolean isDone() {
+                    synchronized (done) {
+                        return done[0];
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        // every few puts compact the log under the readers
+        for (int version = 0; version < 200; version++) {
+            put(cache, "/churn.xml", version, item + version);
+        }
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (null != failure.get()) {
+            throw new AssertionError(failure.get());
+        }
+        assertFalse(cache.isFull());
+        assertArrayEquals(new String[] { item }, cache.get("/stable.xml", 1));
+        cache.close();
+    }
+
+    private static void put(ResultCache _cache, String _uri,
+            long _timestamp, String... _items) throws IOException {
+        ResultCache.Entry entry = _cache.newEntry(_uri, _timestamp);
+        for (String item : _items) {
+            entry.add(item);
+        }
+        _cache.put(entry);
+    }
+
+    private static String text(int _length) {
+        StringBuilder sb = new StringBuilder(_length);
+        for (int i = 0; i < _length; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gives every uri the same hash.
+     */
+    private class CollidingCache extends ResultCache {
+
+        CollidingCache(File _file) throws IOException {
+            super(_file, 0, FINGERPRINT);
+        }
+
+        long hash(String _uri) {
+            return 42;
+        }
+    }
+
+}
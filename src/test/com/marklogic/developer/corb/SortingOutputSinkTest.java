@@ -0,0 +1,124 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Sorting in memory, and merging spilled runs.
+ */
+public class SortingOutputSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sortsInMemory() throws IOException {
+        File output = folder.newFile();
+        File tmp = folder.newFolder();
+        SortingOutputSink sink = new SortingOutputSink(output,
+                SortingOutputSink.KEY_LINE, 1024 * 1024, tmp);
+        sink.write("/1.xml", LocalResults.newSequence(new String[] {
+                "pear\napple", "fig" }));
+        sink.write("/2.xml", LocalResults.newSequence("banana\n"));
+        sink.close();
+        assertEquals(lines("apple", "banana", "fig", "pear"), read(output));
+        assertEquals(0, tmp.list().length);
+    }
+
+    @Test
+    public void compareKeys() {
+        assertEquals(0, SortingOutputSink.compareKeys("a\tz", "a\ty"));
+        assertEquals(0, SortingOutputSink.compareKeys("a", "a\ty"));
+        assertTrue(SortingOutputSink.compareKeys("a\tz", "ab\ta") < 0);
+        assertTrue(SortingOutputSink.compareKeys("b", "a\tz") > 0);
+    }
+
+    /**
+     * A tiny memory budget spills every result to a run of its own. With
+     * more than {@link SortingOutputSink#MERGE_FACTOR} squared runs, the
+     * merge takes more than one pass over them.
+     */
+    @Test
+    public void equalKeysKeepOrderAcrossMergePasses() throws IOException {
+        int count = SortingOutputSink.MERGE_FACTOR
+                * SortingOutputSink.MERGE_FACTOR + 200;
+        File output = folder.newFile();
+        File tmp = folder.newFolder();
+        SortingOutputSink sink = new SortingOutputSink(output,
+                SortingOutputSink.KEY_FIELD, 1, tmp);
+        // arrival cycles through the keys, out of order
+        String[] keys = new String[] { "c", "a", "b" };
+        for (int i = 0; i < count; i++) {
+            sink.write("/" + i + ".xml", LocalResults.newSequence(keys[i
+                    % keys.length]
+                    + "\t" + i));
+        }
+        sink.close();
+        // each key in arrival order
+        List<String> expected = new ArrayList<String>();
+        for (String key : new String[] { "a", "b", "c" }) {
+            for (int i = 0; i < count; i++) {
+                if (key.equals(keys[i % keys.length])) {
+                    expected.add(key + "\t" + i);
+                }
+            }
+        }
+        assertEquals(expected, read(output));
+        assertEquals(0, tmp.list().length);
+    }
+
+    private static List<String> lines(String... _lines) {
+        List<String> list = new ArrayList<String>();
+        for (String line : _lines) {
+            list.add(line);
+        }
+        return list;
+    }
+
+    private static List<String> read(File _file) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(_file), Charset.defaultCharset()));
+        try {
+            List<String> list = new ArrayList<String>();
+            String line;
+            while (null != (line = r.readLine())) {
+                list.add(line);
+            }
+            return list;
+        } finally {
+            r.close();
+        }
+    }
+
+}
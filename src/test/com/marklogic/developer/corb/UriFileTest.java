@@ -0,0 +1,169 @@
+/*
+ * Copyright (c)2005-2012 Mark Logic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Scanning and resolving uris in a memory-mapped {@link UriFile}.
+ */
+public class UriFileTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** where the second 1 GiB segment starts */
+    private static final long BOUNDARY = 1L << 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void skipsBlankLines() throws IOException {
+        File file = folder.newFile();
+        write(file, "/a.xml\n\n\r\n/b.xml\r\n   \n/c.xml", 0, null);
+        UriFile uris = new UriFile(file);
+        assertEquals(4, uris.count());
+        assertEquals(lines("/a.xml", "/b.xml", "   ", "/c.xml"), scan(uris));
+        // the scan is done, and count does not move it
+        assertEquals(-1, uris.next());
+        assertEquals(4, uris.count());
+        assertNull(uris.resolve(-1));
+        assertNull(uris.resolve(file.length()));
+        uris.close();
+        try {
+            uris.resolve(0);
+            fail("expected an exception");
+        } catch (IllegalStateException e) {
+            // closed
+        }
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        UriFile uris = new UriFile(folder.newFile());
+        assertEquals(0, uris.count());
+        assertEquals(-1, uris.next());
+        uris.close();
+    }
+
+    /**
+     * A uri that starts in the first segment and ends in the second, with a
+     * two-byte character split between them. This writes a file of just
+     * over 1 GiB, mostly blank lines.
+     */
+    @Test
+    public void uriCrossesSegmentBoundary() throws IOException {
+        File file = folder.newFile();
+        String crossing = "/\u00e9-crosses.xml";
+        // the first byte of the character is the last of the segment
+        write(file, "/first.xml\n/second.xml\r\n", BOUNDARY - 2, crossing
+                + "\r\n/last.xml");
+        assertEquals(BOUNDARY + crossing.getBytes(UTF8).length - 2 + 11, file
+                .length());
+        UriFile uris = new UriFile(file);
+        assertEquals(4, uris.count());
+        List<Long> positions = new ArrayList<Long>();
+        assertEquals(lines("/first.xml", "/second.xml", crossing, "/last.xml"),
+                scan(uris, positions));
+        assertEquals(Long.valueOf(BOUNDARY - 2), positions.get(2));
+        // resolving again, out of order
+        assertEquals("/last.xml", uris.resolve(positions.get(3)));
+        assertEquals(crossing, uris.resolve(positions.get(2)));
+        assertEquals("/first.xml", uris.resolve(positions.get(0)));
+        uris.close();
+    }
+
+    private static List<String> scan(UriFile _uris) {
+        return scan(_uris, new ArrayList<Long>());
+    }
+
+    private static List<String> scan(UriFile _uris, List<Long> _positions) {
+        List<String> list = new ArrayList<String>();
+        long position;
+        while ((position = _uris.next()) > -1) {
+            _positions.add(Long.valueOf(position));
+            list.add(_uris.resolve(position));
+        }
+        return list;
+    }
+
+    /**
+     * @param _file
+     * @param _head
+     * @param _padTo
+     *            fill with newlines up to this offset
+     * @param _tail
+     *            written after the padding, if not null
+     * @throws IOException
+     */
+    private static void write(File _file, String _head, long _padTo,
+            String _tail) throws IOException {
+        FileOutputStream out = new FileOutputStream(_file);
+        try {
+            FileChannel channel = out.getChannel();
+            writeFully(channel, ByteBuffer.wrap(_head.getBytes(UTF8)));
+            ByteBuffer newlines = ByteBuffer.allocate(1024 * 1024);
+            while (newlines.hasRemaining()) {
+                newlines.put((byte) '\n');
+            }
+            while (channel.position() < _padTo) {
+                newlines.clear();
+                newlines.limit((int) Math.min(newlines.capacity(), _padTo
+                        - channel.position()));
+                writeFully(channel, newlines);
+            }
+            if (null != _tail) {
+                writeFully(channel, ByteBuffer.wrap(_tail.getBytes(UTF8)));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeFully(FileChannel _channel, ByteBuffer _buffer)
+            throws IOException {
+        while (_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+    }
+
+    private static List<String> lines(String... _lines) {
+        List<String> list = new ArrayList<String>();
+        for (String line : _lines) {
+            list.add(line);
+        }
+        return list;
+    }
+
+}